@@ -0,0 +1,287 @@
+package com.frost.steven.amp.helpers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of pre-scaled album artwork, kept in the application cache
+ * directory. Decoding a thumbnail from the original artwork means reading and
+ * subsampling the full size cover, whereas a cached thumbnail is a small file
+ * that decodes directly to the right size, so artwork only has to be decoded
+ * from the source once rather than once per process.
+ *
+ * Entries are keyed by album ID and size. The cache is kept under
+ * `MAX_SIZE` bytes by evicting the least recently used entries, with the
+ * file modification time recording use so the order survives restarts. The
+ * directory is only listed the first time the cache is used.
+ */
+public class ArtworkDiskCache
+{
+    private static final String DIRECTORY_NAME = "artwork";
+    private static final String FILE_SUFFIX    = ".jpg";
+    private static final String TEMP_SUFFIX    = ".tmp";
+    private static final long   MAX_SIZE       = 16L * 1024 * 1024; // bytes
+    private static final int    QUALITY        = 90;
+
+    private static ArtworkDiskCache s_instance;
+
+    private File              m_directory;
+    private Map<String, Long> m_entries;
+    private long              m_size;
+    private boolean           m_loaded;
+
+    /**
+     * Gets the process-wide artwork cache, creating it if necessary.
+     *
+     * @param context Any context, the application context is retained
+     *
+     * @return The artwork cache
+     */
+    public static synchronized ArtworkDiskCache getInstance(Context context)
+    {
+        if (s_instance == null)
+        {
+            Context appContext = context.getApplicationContext();
+            s_instance = new ArtworkDiskCache(new File(appContext.getCacheDir(), DIRECTORY_NAME));
+        }
+        return s_instance;
+    }
+
+    private ArtworkDiskCache(File directory)
+    {
+        m_directory = directory;
+
+        // Access ordered, so iteration starts from the least recently used
+        m_entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Reads the cached artwork for an album. This does file I/O and must not
+     * be called from the UI thread.
+     *
+     * @param albumId MediaStore album ID
+     * @param size    The width and height of the artwork
+     * @param pool    Pool of bitmaps that the artwork can be decoded into
+     *
+     * @return The artwork, or null if it is not in the cache.
+     */
+    public Bitmap get(long albumId, int size, BitmapPool pool)
+    {
+        String name = getFileName(albumId, size);
+        File file = new File(m_directory, name);
+
+        synchronized (this)
+        {
+            ensureLoaded();
+            if (m_entries.get(name) == null)
+            {
+                return null;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable         = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap          = pool.get(size, size, options.inPreferredConfig);
+
+        Bitmap bitmap;
+        try
+        {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // The pooled bitmap could not be reused for this file
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+
+        if (bitmap == null)
+        {
+            // The file is unreadable or was evicted while being read
+            remove(name);
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    /**
+     * Writes artwork for an album to the cache, evicting the least recently
+     * used entries if the cache is over budget. The file is written under a
+     * temporary name and renamed so a partially written file is never read.
+     * This does file I/O and must not be called from the UI thread.
+     *
+     * @param albumId MediaStore album ID
+     * @param size    The width and height of the artwork
+     * @param bitmap  The artwork to store
+     */
+    public void put(long albumId, int size, Bitmap bitmap)
+    {
+        String name = getFileName(albumId, size);
+        File file = new File(m_directory, name);
+        File tempFile = new File(m_directory, name + TEMP_SUFFIX + Thread.currentThread().getId());
+
+        synchronized (this)
+        {
+            ensureLoaded();
+        }
+
+        OutputStream stream = null;
+        try
+        {
+            stream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, stream))
+            {
+                throw new IOException("Unable to compress artwork for album " + albumId + ".");
+            }
+            stream.close();
+            stream = null;
+
+            synchronized (this)
+            {
+                if (!tempFile.renameTo(file))
+                {
+                    throw new IOException("Unable to replace '" + file.getPath() + "'.");
+                }
+
+                Long previous = m_entries.put(name, file.length());
+                m_size += file.length() - (previous == null ? 0 : previous);
+                trimToSize(MAX_SIZE);
+            }
+        }
+        catch (IOException ex)
+        {
+            Log.w(ArtworkDiskCache.class.getName(), "Unable to write cached artwork.", ex);
+            if (stream != null)
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch (IOException ignored) {}
+            }
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes every cached size of an album's artwork. This should be called
+     * when the tracks on an album change, as the artwork may have changed
+     * with them. This does file I/O and must not be called from the UI thread.
+     *
+     * @param albumId MediaStore album ID
+     */
+    public synchronized void invalidate(long albumId)
+    {
+        ensureLoaded();
+
+        String prefix = albumId + "_";
+        Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().startsWith(prefix))
+            {
+                new File(m_directory, entry.getKey()).delete();
+                m_size -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void remove(String name)
+    {
+        Long length = m_entries.remove(name);
+        if (length != null)
+        {
+            new File(m_directory, name).delete();
+            m_size -= length;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is no larger
+     * than the given size. The caller must hold the cache lock.
+     */
+    private void trimToSize(long maxSize)
+    {
+        Iterator<Map.Entry<String, Long>> it = m_entries.entrySet().iterator();
+        while (m_size > maxSize && it.hasNext())
+        {
+            Map.Entry<String, Long> entry = it.next();
+            new File(m_directory, entry.getKey()).delete();
+            m_size -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Lists the cache directory the first time the cache is used, ordering
+     * the entries by when they were last used. Temporary files left behind by
+     * an interrupted write are deleted. The caller must hold the cache lock.
+     */
+    private void ensureLoaded()
+    {
+        if (m_loaded)
+        {
+            return;
+        }
+        m_loaded = true;
+
+        if (!m_directory.isDirectory() && !m_directory.mkdirs())
+        {
+            Log.w(ArtworkDiskCache.class.getName(), "Unable to create '" + m_directory.getPath() + "'.");
+            return;
+        }
+
+        File[] files = m_directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        for (File file : files)
+        {
+            if (!file.getName().endsWith(FILE_SUFFIX))
+            {
+                file.delete();
+                continue;
+            }
+
+            m_entries.put(file.getName(), file.length());
+            m_size += file.length();
+        }
+        trimToSize(MAX_SIZE);
+    }
+
+    private static String getFileName(long albumId, int size)
+    {
+        return albumId + "_" + size + FILE_SUFFIX;
+    }
+}
@@ -0,0 +1,293 @@
+package com.frost.steven.amp.helpers;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which albums in the MediaStore have artwork. Checking for artwork
+ * means opening the album art file, which is by far the most expensive part
+ * of a library scan, so each album is probed at most once and the results are
+ * shared between every scanner and persisted between runs.
+ *
+ * Albums without artwork are all probed again once `NEGATIVE_LIFETIME` has
+ * passed, since the MediaStore may generate artwork for an album some time
+ * after its tracks were first scanned.
+ */
+public class ArtworkIndex
+{
+    private static final String INDEX_FILENAME    = "artwork.index";
+    private static final int    MAGIC             = 0x414D5041; // "AMPA"
+    private static final int    VERSION           = 1;
+    private static final long   NEGATIVE_LIFETIME = 7L * 24 * 60 * 60 * 1000; // ms
+
+    private static final Uri s_artworkUri = Uri.parse("content://media/external/audio/albumart");
+
+    private static ArtworkIndex s_instance;
+
+    private ContentResolver    m_contentResolver;
+    private File               m_file;
+    private Map<Long, Boolean> m_entries;
+
+    private long             m_negativesSince;
+    private volatile boolean m_loaded;
+    private volatile boolean m_dirty;
+
+    /**
+     * Gets the process-wide artwork index, creating it if necessary.
+     *
+     * @param context Any context, the application context is retained
+     *
+     * @return The artwork index
+     */
+    public static synchronized ArtworkIndex getInstance(Context context)
+    {
+        if (s_instance == null)
+        {
+            Context appContext = context.getApplicationContext();
+            s_instance = new ArtworkIndex(appContext.getContentResolver(), new File(appContext.getCacheDir(), INDEX_FILENAME));
+        }
+        return s_instance;
+    }
+
+    /**
+     * Builds the MediaStore artwork URI for an album. The URI is only usable
+     * if the album actually has artwork.
+     *
+     * @param albumId MediaStore album ID
+     *
+     * @return The album artwork URI
+     */
+    public static Uri getAlbumArtworkUri(long albumId)
+    {
+        return ContentUris.withAppendedId(s_artworkUri, albumId);
+    }
+
+    private ArtworkIndex(ContentResolver contentResolver, File file)
+    {
+        m_contentResolver = contentResolver;
+        m_file            = file;
+        m_entries         = new ConcurrentHashMap<>();
+        m_negativesSince  = System.currentTimeMillis();
+    }
+
+    /**
+     * Determines whether the given album has artwork, probing the MediaStore
+     * if the album has not been seen before. This may do I/O and must not be
+     * called from the UI thread.
+     *
+     * @param albumId MediaStore album ID
+     *
+     * @return True if the album has artwork, false otherwise.
+     */
+    public boolean hasArtwork(long albumId)
+    {
+        ensureLoaded();
+
+        Boolean hasArtwork = m_entries.get(albumId);
+        if (hasArtwork == null)
+        {
+            hasArtwork = probe(albumId);
+            m_entries.put(albumId, hasArtwork);
+            m_dirty = true;
+        }
+        return hasArtwork;
+    }
+
+    /**
+     * Records that an album is known to have artwork, for example because the
+     * MediaStore reported a cached artwork file for it.
+     *
+     * @param albumId MediaStore album ID
+     */
+    public void recordArtwork(long albumId)
+    {
+        ensureLoaded();
+
+        Boolean previous = m_entries.put(albumId, true);
+        if (previous == null || !previous)
+        {
+            m_dirty = true;
+        }
+    }
+
+    /**
+     * Forgets the result for an album so it is probed again the next time it
+     * is requested. This should be called when the tracks on an album change.
+     *
+     * @param albumId MediaStore album ID
+     */
+    public void invalidate(long albumId)
+    {
+        if (m_entries.remove(albumId) != null)
+        {
+            m_dirty = true;
+        }
+    }
+
+    /**
+     * Writes the index to disk if it has changed since it was last loaded or
+     * saved. This does file I/O and must not be called from the UI thread.
+     */
+    public synchronized void save()
+    {
+        if (!m_dirty)
+        {
+            return;
+        }
+        m_dirty = false;
+
+        File tempFile = new File(m_file.getPath() + ".tmp");
+
+        DataOutputStream stream = null;
+        try
+        {
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeLong(m_negativesSince);
+            stream.writeInt(m_entries.size());
+            for (Map.Entry<Long, Boolean> entry : m_entries.entrySet())
+            {
+                stream.writeLong(entry.getKey());
+                stream.writeBoolean(entry.getValue());
+            }
+            stream.close();
+            stream = null;
+
+            if (!tempFile.renameTo(m_file))
+            {
+                throw new IOException("Unable to replace '" + m_file.getPath() + "'.");
+            }
+        }
+        catch (IOException ex)
+        {
+            Log.e(ArtworkIndex.class.getName(), "Unable to write artwork index.", ex);
+            closeQuietly(stream);
+            tempFile.delete();
+            m_dirty = true;
+        }
+    }
+
+    /**
+     * Loads the persisted index the first time the index is used.
+     */
+    private void ensureLoaded()
+    {
+        if (m_loaded)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (m_loaded)
+            {
+                return;
+            }
+            if (!m_file.exists())
+            {
+                m_loaded = true;
+                return;
+            }
+
+            DataInputStream stream = null;
+            try
+            {
+                stream = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+                if (stream.readInt() != MAGIC || stream.readInt() != VERSION)
+                {
+                    Log.w(ArtworkIndex.class.getName(), "Discarding stale artwork index.");
+                    return;
+                }
+
+                long negativesSince = stream.readLong();
+                boolean keepNegatives = System.currentTimeMillis() - negativesSince < NEGATIVE_LIFETIME;
+                if (keepNegatives)
+                {
+                    m_negativesSince = negativesSince;
+                }
+
+                int numEntries = stream.readInt();
+                for (int i = 0; i < numEntries; ++i)
+                {
+                    long albumId = stream.readLong();
+                    boolean hasArtwork = stream.readBoolean();
+                    if (hasArtwork || keepNegatives)
+                    {
+                        m_entries.put(albumId, hasArtwork);
+                    }
+                }
+
+                if (!keepNegatives)
+                {
+                    m_dirty = true;
+                }
+            }
+            catch (IOException ex)
+            {
+                Log.w(ArtworkIndex.class.getName(), "Unable to read artwork index.", ex);
+                m_entries.clear();
+            }
+            finally
+            {
+                closeQuietly(stream);
+                m_loaded = true;
+            }
+        }
+    }
+
+    /**
+     * Determines whether an album has artwork by opening the artwork file.
+     * The descriptor is closed straight away as only its existence matters.
+     *
+     * @param albumId MediaStore album ID
+     *
+     * @return True if the album has artwork, false otherwise.
+     */
+    private boolean probe(long albumId)
+    {
+        ParcelFileDescriptor descriptor = null;
+        try
+        {
+            descriptor = m_contentResolver.openFileDescriptor(getAlbumArtworkUri(albumId), "r");
+            return descriptor != null;
+        }
+        catch (FileNotFoundException ex)
+        {
+            return false;
+        }
+        finally
+        {
+            closeQuietly(descriptor);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
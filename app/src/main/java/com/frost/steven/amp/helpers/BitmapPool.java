@@ -0,0 +1,159 @@
+package com.frost.steven.amp.helpers;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer displayed or cached, kept so their
+ * memory can be reused by later decodes through `inBitmap` rather than
+ * allocating a new buffer each time. Bitmaps are matched by allocation size,
+ * as a buffer can be reconfigured for any image that fits in it.
+ *
+ * The pool is kept under a byte budget by dropping the bitmaps that have been
+ * in it the longest.
+ */
+public class BitmapPool
+{
+    private TreeMap<Integer, List<Bitmap>> m_bitmaps;
+    private Set<Bitmap>                    m_order;
+    private long                           m_size;
+    private long                           m_maxSize;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize The maximum number of bytes held by the pool
+     */
+    public BitmapPool(long maxSize)
+    {
+        m_bitmaps = new TreeMap<>();
+        m_order   = new LinkedHashSet<>();
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The bitmap must not be displayed or used
+     * anywhere else once it has been added. Bitmaps that cannot be reused
+     * are ignored.
+     *
+     * @param bitmap The bitmap to add
+     */
+    public synchronized void put(Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || m_order.contains(bitmap))
+        {
+            return;
+        }
+
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > m_maxSize)
+        {
+            return;
+        }
+
+        List<Bitmap> bitmaps = m_bitmaps.get(byteCount);
+        if (bitmaps == null)
+        {
+            bitmaps = new ArrayList<>();
+            m_bitmaps.put(byteCount, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        m_order.add(bitmap);
+        m_size += byteCount;
+
+        trimToSize(m_maxSize);
+    }
+
+    /**
+     * Removes the smallest pooled bitmap that can hold an image of the given
+     * dimensions and configuration.
+     *
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param config Configuration of the image
+     *
+     * @return A bitmap to decode into, or null if none are large enough.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        int byteCount = width * height * getBytesPerPixel(config);
+
+        Map.Entry<Integer, List<Bitmap>> entry = m_bitmaps.ceilingEntry(byteCount);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        List<Bitmap> bitmaps = entry.getValue();
+        Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        if (bitmaps.isEmpty())
+        {
+            m_bitmaps.remove(entry.getKey());
+        }
+        m_order.remove(bitmap);
+        m_size -= entry.getKey();
+
+        return bitmap;
+    }
+
+    /**
+     * Drops the oldest bitmaps in the pool until it holds no more than the
+     * given number of bytes.
+     *
+     * @param maxSize The number of bytes to trim the pool to
+     */
+    public synchronized void trimToSize(long maxSize)
+    {
+        Iterator<Bitmap> it = m_order.iterator();
+        while (m_size > maxSize && it.hasNext())
+        {
+            Bitmap bitmap = it.next();
+            it.remove();
+
+            int byteCount = bitmap.getAllocationByteCount();
+            List<Bitmap> bitmaps = m_bitmaps.get(byteCount);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty())
+            {
+                m_bitmaps.remove(byteCount);
+            }
+            m_size -= byteCount;
+        }
+    }
+
+    /**
+     * Drops every bitmap in the pool.
+     */
+    public void clear()
+    {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The number of bytes held by the pool
+     */
+    public synchronized long getSize()
+    {
+        return m_size;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config)
+    {
+        if (config == Bitmap.Config.ALPHA_8)
+        {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+        {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -1,67 +1,138 @@
 package com.frost.steven.amp.helpers;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.provider.MediaStore;
-import android.util.LruCache;
+import android.util.LongSparseArray;
 import android.widget.ImageView;
 
 import com.frost.steven.amp.R;
+import com.frost.steven.amp.utils.LongLruCache;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
- * This class is a helper to aid bitmap resolution from a Uri. The public
+ * This class is a helper to aid album artwork resolution. The public
  * interface is extremely simple - one request needs to be made for an
  * ImageView object and the bitmap will be resolved asynchronously.
  *
  * This class contains an LRU cache and management of any async tasks which
  * means that bitmaps will only be loaded once (even if multiple requests are
- * made for the same Uri simultaneously) and all requests will be filled
+ * made for the same album simultaneously) and all requests will be filled
  * once the bitmap has finished loading.
+ *
+ * Requested sizes are rounded up to one of a few size buckets, and bitmaps
+ * are keyed by album ID and bucket packed into a single long, so lookups do
+ * not allocate. A size that isn't cached is scaled down from a larger cached
+ * size of the same album where possible rather than decoded again, and
+ * while a size is loading a smaller cached size is shown in its place.
+ *
+ * Work is run by a `DecodeScheduler`, which runs the newest thumbnail
+ * requests first and large artwork ahead of thumbnails. A request whose views
+ * have all been rebound is removed from the scheduler's queue.
+ *
+ * Album artwork is also kept in an `ArtworkDiskCache` once it has been
+ * scaled, so it is only decoded from the original artwork once rather than
+ * every time the process starts.
+ *
+ * Bitmaps leaving the memory cache are handed to a `BitmapPool` so their
+ * buffers can be reused by later decodes. A bitmap can leave the cache while
+ * it is still displayed, so the resolver counts the references held by the
+ * views it binds and by its workers, and a bitmap is only pooled once it has
+ * left the cache and nothing references it.
+ *
+ * All of the resolver's state is confined to the UI thread. Workers only
+ * decode, and hand their result back in `onPostExecute` where it is cached
+ * and bound, so requests never wait on a decode thread and nothing needs to
+ * be locked. The request bound to an ImageView is kept in a view tag. Every
+ * public method must be called from the UI thread.
+ *
+ * The resolver responds to memory pressure when it is registered for
+ * component callbacks. While the UI is hidden the memory cache is shrunk
+ * and the pool emptied, so background playback holds little artwork, and
+ * both are flushed entirely when memory is low. `onUiVisible` grows the
+ * cache back to its normal size.
  */
-public class BitmapResolver
+public class BitmapResolver implements ComponentCallbacks2
 {
+    public static final long NO_ARTWORK = -1;
+
+    /** Priority of artwork that is the focus of the screen */
+    public static final int PRIORITY_HIGH     = DecodeScheduler.PRIORITY_HIGH;
+    /** Priority of thumbnails in lists */
+    public static final int PRIORITY_LOW      = DecodeScheduler.PRIORITY_LOW;
+    /** Priority of artwork that may be shown soon */
+    public static final int PRIORITY_PREFETCH = DecodeScheduler.PRIORITY_PREFETCH;
+
+    private static final int[] s_sizeBuckets = { 100, 200, 500, 1000 };
+    private static final int   BUCKET_BITS   = 2;
+
+    private static final Paint s_scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     private static final int m_maxMemory = (int)(Runtime.getRuntime().maxMemory() / 1024);
     private static final int m_cacheSize = m_maxMemory / 4;
+    private static final int m_poolSize  = m_maxMemory / 16;
 
     private Bitmap m_placeholderBitmap;
 
-    private Map<String, Worker>      m_bitmapTasks;
-    private LruCache<String, Bitmap> m_cache;
+    private boolean m_trimmed;
+
+    private LongSparseArray<Worker> m_bitmapTasks;
+    private LongLruCache<Bitmap>    m_cache;
+    private BitmapPool              m_bitmapPool;
+    private Map<Bitmap, BitmapRefs> m_bitmapRefs;
 
-    private Resources       m_resources;
-    private ContentResolver m_resolver;
+    private ContentResolver  m_resolver;
+    private ArtworkDiskCache m_diskCache;
+    private DecodeScheduler  m_scheduler;
 
     /**
      * Constructor
      *
      * @param resources The application resources object
      * @param resolver  The content resolver, used to resolve bitmaps
+     * @param diskCache The persistent cache of scaled album artwork
      */
-    public BitmapResolver(Resources resources, ContentResolver resolver)
+    public BitmapResolver(Resources resources, ContentResolver resolver, ArtworkDiskCache diskCache)
     {
-        m_resources = resources;
         m_resolver = resolver;
+        m_diskCache = diskCache;
+        m_scheduler = DecodeScheduler.getInstance();
 
-        m_bitmapTasks = new HashMap<>();
-        m_cache = new LruCache<String, Bitmap>(m_cacheSize)
+        m_bitmapTasks = new LongSparseArray<>();
+        m_bitmapPool = new BitmapPool((long)m_poolSize * 1024);
+        m_bitmapRefs = new WeakHashMap<>();
+        m_cache = new LongLruCache<Bitmap>(m_cacheSize)
         {
             @Override
-            protected int sizeOf(String key, Bitmap bitmap)
+            protected int sizeOf(long key, Bitmap bitmap)
             {
-                return bitmap.getByteCount() / 1024;
+                return bitmap.getAllocationByteCount() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, long key, Bitmap oldValue, Bitmap newValue)
+            {
+                if (oldValue != newValue)
+                {
+                    onRemovedFromCache(oldValue);
+                }
             }
         };
 
@@ -70,8 +141,8 @@ public class BitmapResolver
     }
 
     /**
-     * Requests that the given ImageView has the bitmap at the given uri and
-     * size loaded at some time in the future.
+     * Requests that the given ImageView has the artwork for the given album
+     * at the given size loaded at some time in the future.
      *
      * If the ImageView object already has outstanding tasks against it they
      * will be canceled in favour of the new task (provided they are different)
@@ -80,48 +151,406 @@ public class BitmapResolver
      * of those then a new task will begin to load the bitmap into memory.
      *
      * @param imageView The ImageView to set the bitmap for
-     * @param uri       The image URI to load
+     * @param albumId   The album to load the artwork of, or `NO_ARTWORK` to
+     *                  show the placeholder
      * @param size      The size of the image
      */
-    public synchronized void makeRequest(ImageView imageView, Uri uri, int size)
+    public void makeRequest(ImageView imageView, long albumId, int size)
     {
-        if (uri == null)
+        makeRequest(imageView, albumId, size, PRIORITY_LOW);
+    }
+
+    /**
+     * Requests that the given ImageView has the artwork for the given album
+     * at the given size loaded at some time in the future, ahead of any
+     * requests with a lower priority.
+     *
+     * @param imageView The ImageView to set the bitmap for
+     * @param albumId   The album to load the artwork of, or `NO_ARTWORK` to
+     *                  show the placeholder
+     * @param size      The size of the image
+     * @param priority  `PRIORITY_HIGH` or `PRIORITY_LOW`
+     */
+    public void makeRequest(ImageView imageView, long albumId, int size, int priority)
+    {
+        if (albumId < 0)
         {
-            imageView.setImageBitmap(m_placeholderBitmap);
+            cancelOutstandingWork(imageView, NO_ARTWORK);
+            setImageBitmap(imageView, m_placeholderBitmap);
             return;
         }
 
-        String key = uri.toString() + size;
+        int bucket = getSizeBucket(size);
+        long key = getKey(albumId, bucket);
         if (cancelOutstandingWork(imageView, key))
         {
             // Check if the bitmap is in the cache, we can early out in that case
             Bitmap bitmap = m_cache.get(key);
             if (bitmap != null)
             {
-                imageView.setImageBitmap(bitmap);
+                setImageBitmap(imageView, bitmap);
                 return;
             }
 
             // Now check if there are any outstanding workers processing the
             // requested bitmap
-            if (m_bitmapTasks.containsKey(key))
+            Worker worker = m_bitmapTasks.get(key);
+            if (worker != null && !worker.isCancelled())
             {
-                Worker worker = m_bitmapTasks.get(key);
+                setInterimImage(imageView, albumId, bucket);
                 worker.addViewReference(imageView);
 
-                imageView.setImageDrawable(new AsyncDrawable(m_resources, null, worker));
+                if (priority < worker.m_priority)
+                {
+                    worker.m_priority = priority;
+                    m_scheduler.promote(worker, priority);
+                }
                 return;
             }
 
             // If the bitmap isn't in the cache and isn't in progress we should
             // start a new task to load it into memory
-            Worker worker = new Worker(uri, size, key);
+            worker = startWorker(albumId, bucket, key, priority);
+            setInterimImage(imageView, albumId, bucket);
             worker.addViewReference(imageView);
-            imageView.setImageDrawable(new AsyncDrawable(m_resources, null, worker));
-            worker.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
     }
 
+    /**
+     * Restores the memory cache to its normal size after it was shrunk by a
+     * trim event. This should be called whenever the UI becomes visible.
+     */
+    public void onUiVisible()
+    {
+        if (m_trimmed)
+        {
+            m_cache.resize(m_cacheSize);
+            m_trimmed = false;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level)
+    {
+        // Evicted bitmaps are handed to the pool, so the cache is trimmed
+        // before the pool
+        if (level >= TRIM_MEMORY_MODERATE)
+        {
+            // The process is near the top of the list to be killed
+            m_cache.evictAll();
+            m_bitmapPool.clear();
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND)
+        {
+            shrinkCache(m_cacheSize / 8);
+            m_bitmapPool.clear();
+        }
+        else if (level >= TRIM_MEMORY_UI_HIDDEN)
+        {
+            // Only playback is running, which shows nothing but the
+            // notification artwork
+            shrinkCache(m_cacheSize / 4);
+            m_bitmapPool.clear();
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            m_cache.trimToSize(m_cacheSize / 4);
+            m_bitmapPool.clear();
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_LOW)
+        {
+            m_cache.trimToSize(m_cacheSize / 2);
+            m_bitmapPool.trimToSize(m_bitmapPool.getSize() / 2);
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+        {
+            m_bitmapPool.trimToSize(m_bitmapPool.getSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        m_cache.evictAll();
+        m_bitmapPool.clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Limits the memory cache to the given size until the UI is visible
+     * again.
+     */
+    private void shrinkCache(int maxSize)
+    {
+        m_cache.resize(Math.max(Math.min(maxSize, m_cache.maxSize()), 1));
+        m_trimmed = true;
+    }
+
+    /**
+     * Loads the artwork for an album without going through the memory cache.
+     * The artwork is read from the disk cache if it is there, otherwise it is
+     * decoded from the album's artwork and added to the disk cache. This does
+     * file I/O and must not be called from the UI thread.
+     *
+     * @param resolver  The content resolver used to open the artwork
+     * @param diskCache The persistent cache of scaled album artwork
+     * @param albumId   The album to load the artwork of
+     * @param size      The size of the artwork, rounded up to a size bucket
+     * @param pool      Pool of bitmaps that the artwork can be decoded into
+     *
+     * @return The artwork, or null if it could not be decoded.
+     */
+    public static Bitmap loadArtwork(ContentResolver resolver, ArtworkDiskCache diskCache, long albumId, int size, BitmapPool pool) throws IOException
+    {
+        size = s_sizeBuckets[getSizeBucket(size)];
+
+        Bitmap bitmap = diskCache.get(albumId, size, pool);
+        if (bitmap == null)
+        {
+            Uri uri = ArtworkIndex.getAlbumArtworkUri(albumId);
+            bitmap = decodeSampledBitmap(resolver, uri, size, pool);
+            if (bitmap != null)
+            {
+                diskCache.put(albumId, size, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the image at the given URI to a square bitmap of the given size.
+     * The bounds of the image are read first so the decoder can subsample it
+     * by the largest power of two that keeps it at least as large as the
+     * requested size, and the decoder then scales the remainder as it goes,
+     * so the full resolution image is never held in memory.
+     *
+     * @param resolver The content resolver used to open the image
+     * @param uri      The image URI to decode
+     * @param size     The width and height of the resulting bitmap
+     * @param pool     Pool of bitmaps that the image can be decoded into
+     *
+     * @return The decoded bitmap, or null if the image could not be decoded.
+     */
+    static Bitmap decodeSampledBitmap(ContentResolver resolver, Uri uri, int size, BitmapPool pool) throws IOException
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resolver, uri, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+
+        // Album art is square, so the smaller dimension is used to make sure
+        // neither side ends up smaller than the requested size
+        int sourceSize = Math.min(options.outWidth, options.outHeight);
+        options.inSampleSize = calculateInSampleSize(sourceSize, size);
+
+        // The decoder scales by inTargetDensity / inDensity after sampling
+        int sampledSize = sourceSize / options.inSampleSize;
+        float scale = 1.0f;
+        if (sampledSize > size)
+        {
+            options.inScaled        = true;
+            options.inDensity       = sampledSize;
+            options.inTargetDensity = size;
+            scale = (float)size / sampledSize;
+        }
+
+        // The decoder rounds the sampled dimensions up, so the reused buffer
+        // is allowed a pixel of slack on each side
+        int width  = (int)Math.ceil((options.outWidth / options.inSampleSize + 1) * scale) + 1;
+        int height = (int)Math.ceil((options.outHeight / options.inSampleSize + 1) * scale) + 1;
+
+        options.inJustDecodeBounds = false;
+        options.inMutable          = true;
+        options.inPreferredConfig  = Bitmap.Config.ARGB_8888;
+        options.inBitmap           = pool.get(width, height, options.inPreferredConfig);
+
+        Bitmap bitmap;
+        try
+        {
+            bitmap = decodeStream(resolver, uri, options);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // The pooled bitmap could not be reused for this image
+            options.inBitmap = null;
+            bitmap = decodeStream(resolver, uri, options);
+        }
+
+        // Non-square artwork, or artwork smaller than requested, still needs
+        // a final pass to reach the exact size
+        if (bitmap != null && (bitmap.getWidth() != size || bitmap.getHeight() != size))
+        {
+            Bitmap scaled = scaleBitmap(bitmap, size, pool);
+            pool.put(bitmap);
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales a bitmap to a square of the given size, drawing into a pooled
+     * bitmap where possible.
+     *
+     * @param source The bitmap to scale
+     * @param size   The width and height of the resulting bitmap
+     * @param pool   Pool of bitmaps that can be drawn into
+     *
+     * @return The scaled bitmap
+     */
+    static Bitmap scaleBitmap(Bitmap source, int size, BitmapPool pool)
+    {
+        Bitmap bitmap = pool.get(size, size, Bitmap.Config.ARGB_8888);
+        if (bitmap != null)
+        {
+            bitmap.reconfigure(size, size, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(0);
+        }
+        else
+        {
+            bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        }
+
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawBitmap(source, null, new Rect(0, 0, size, size), s_scalePaint);
+        return bitmap;
+    }
+
+    /**
+     * Gets the bucket that a requested size is rounded up to. Sizes larger
+     * than the largest bucket use the largest bucket.
+     *
+     * @param size The requested size
+     *
+     * @return The index of the size bucket
+     */
+    static int getSizeBucket(int size)
+    {
+        for (int bucket = 0; bucket < s_sizeBuckets.length - 1; ++bucket)
+        {
+            if (size <= s_sizeBuckets[bucket])
+            {
+                return bucket;
+            }
+        }
+        return s_sizeBuckets.length - 1;
+    }
+
+    /**
+     * Packs an album ID and size bucket into a cache key.
+     */
+    static long getKey(long albumId, int bucket)
+    {
+        return (albumId << BUCKET_BITS) | bucket;
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps an image at
+     * least as large as the requested size.
+     *
+     * @param sourceSize The size of the source image
+     * @param size       The requested size
+     *
+     * @return The sample size to decode with
+     */
+    static int calculateInSampleSize(int sourceSize, int size)
+    {
+        int inSampleSize = 1;
+        while (size > 0 && sourceSize / (inSampleSize * 2) >= size)
+        {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws IOException
+    {
+        InputStream stream = resolver.openInputStream(uri);
+        if (stream == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Starts loading the artwork for an album into the cache ahead of it
+     * being requested for a view. Prefetches run after every other request.
+     *
+     * @param albumId The album to load the artwork of
+     * @param size    The size of the image
+     */
+    public void prefetch(long albumId, int size)
+    {
+        if (albumId < 0)
+        {
+            return;
+        }
+
+        int bucket = getSizeBucket(size);
+        long key = getKey(albumId, bucket);
+        if (m_cache.peek(key) != null)
+        {
+            return;
+        }
+
+        Worker worker = m_bitmapTasks.get(key);
+        if (worker != null && !worker.isCancelled())
+        {
+            return;
+        }
+
+        startWorker(albumId, bucket, key, PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Pauses or resumes loading thumbnails and prefetched artwork, for
+     * example while a list is being flung. High priority requests are always
+     * loaded.
+     *
+     * @param paused True to pause, false to resume
+     */
+    public void setPaused(boolean paused)
+    {
+        m_scheduler.setPaused(paused);
+    }
+
+    /**
+     * Starts a worker to load the artwork for an album. If a larger size of
+     * the artwork is cached the worker scales it down rather than loading
+     * the artwork again.
+     *
+     * @param albumId  The album to load the artwork of
+     * @param bucket   The size bucket of the bitmap
+     * @param key      The cache key for the bitmap
+     * @param priority The priority of the worker
+     *
+     * @return The new worker
+     */
+    private Worker startWorker(long albumId, int bucket, long key, int priority)
+    {
+        Worker worker = new Worker(albumId, bucket, key);
+        worker.m_priority = priority;
+        worker.m_source   = acquireLargerCached(albumId, bucket);
+
+        m_bitmapTasks.put(key, worker);
+        m_scheduler.execute(worker, priority);
+        return worker;
+    }
+
     /**
      * Gets the worker task for the given ImageView object
      *
@@ -133,11 +562,7 @@ public class BitmapResolver
     {
         if (view != null)
         {
-            Drawable drawable = view.getDrawable();
-            if (drawable instanceof AsyncDrawable)
-            {
-                return ((AsyncDrawable)drawable).getWorker();
-            }
+            return (Worker)view.getTag(R.id.bitmap_resolver_request);
         }
         return null;
     }
@@ -151,15 +576,13 @@ public class BitmapResolver
      * @return True if the task was cancelled or there was no active task,
      *         False otherwise.
      */
-    private boolean cancelOutstandingWork(ImageView view, String key)
+    private boolean cancelOutstandingWork(ImageView view, long key)
     {
         Worker worker = getTask(view);
 
         if (worker != null)
         {
-            String workerKey = worker.m_key;
-
-            if (workerKey.equals(key))
+            if (worker.m_key == key)
             {
                 return false;
             }
@@ -169,13 +592,144 @@ public class BitmapResolver
     }
 
     /**
-     * Removes a bitmap task from the map given the key
+     * Sets the bitmap displayed by an ImageView, moving the view's reference
+     * from the bitmap it displayed before.
+     *
+     * @param view   The ImageView to update
+     * @param bitmap The bitmap to display
+     */
+    private void setImageBitmap(ImageView view, Bitmap bitmap)
+    {
+        view.setTag(R.id.bitmap_resolver_request, null);
+        releaseViewBitmap(view);
+        if (bitmap != m_placeholderBitmap)
+        {
+            acquire(bitmap);
+        }
+        view.setImageBitmap(bitmap);
+    }
+
+    /**
+     * Sets the image shown while a view waits for its request to finish. The
+     * largest smaller size of the artwork that is cached is shown scaled up,
+     * so the view shows the artwork straight away and only gains detail when
+     * the request finishes. The view is cleared if no smaller size is cached.
+     *
+     * @param view    The ImageView to update
+     * @param albumId The album being loaded
+     * @param bucket  The size bucket being loaded
+     */
+    private void setInterimImage(ImageView view, long albumId, int bucket)
+    {
+        for (int smaller = bucket - 1; smaller >= 0; --smaller)
+        {
+            Bitmap bitmap = m_cache.peek(getKey(albumId, smaller));
+            if (bitmap != null)
+            {
+                setImageBitmap(view, bitmap);
+                return;
+            }
+        }
+        setImageDrawable(view, null);
+    }
+
+    /**
+     * Sets a drawable that does not display a pooled bitmap on an ImageView,
+     * releasing the view's reference to the bitmap it displayed before.
+     *
+     * @param view     The ImageView to update
+     * @param drawable The drawable to display, may be null
+     */
+    private void setImageDrawable(ImageView view, Drawable drawable)
+    {
+        releaseViewBitmap(view);
+        view.setImageDrawable(drawable);
+    }
+
+    private void releaseViewBitmap(ImageView view)
+    {
+        Drawable drawable = view.getDrawable();
+        if (drawable instanceof BitmapDrawable)
+        {
+            release(((BitmapDrawable)drawable).getBitmap());
+        }
+    }
+
+    /**
+     * Adds a reference to a bitmap, preventing it from being pooled.
      *
-     * @param key key of the task to remove
+     * @param bitmap The bitmap to reference
      */
-    private synchronized void removeFromTaskMap(String key)
+    private void acquire(Bitmap bitmap)
     {
-        m_bitmapTasks.remove(key);
+        if (bitmap == null)
+        {
+            return;
+        }
+
+        BitmapRefs refs = m_bitmapRefs.get(bitmap);
+        if (refs == null)
+        {
+            refs = new BitmapRefs();
+            m_bitmapRefs.put(bitmap, refs);
+        }
+        ++refs.m_count;
+    }
+
+    /**
+     * Removes a reference to a bitmap. The bitmap is pooled if this was the
+     * last reference and the bitmap has already left the cache. Bitmaps the
+     * resolver does not track are ignored.
+     *
+     * @param bitmap The bitmap to release
+     */
+    private void release(Bitmap bitmap)
+    {
+        BitmapRefs refs = bitmap == null ? null : m_bitmapRefs.get(bitmap);
+        if (refs == null || refs.m_count == 0)
+        {
+            return;
+        }
+
+        if (--refs.m_count == 0 && refs.m_removed)
+        {
+            m_bitmapRefs.remove(bitmap);
+            m_bitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Called when a bitmap leaves the cache. The bitmap is pooled straight
+     * away if nothing references it, otherwise it is pooled when the last
+     * reference is released.
+     */
+    private void onRemovedFromCache(Bitmap bitmap)
+    {
+        BitmapRefs refs = m_bitmapRefs.get(bitmap);
+        if (refs == null || refs.m_count == 0)
+        {
+            m_bitmapRefs.remove(bitmap);
+            m_bitmapPool.put(bitmap);
+        }
+        else
+        {
+            refs.m_removed = true;
+        }
+    }
+
+    /**
+     * Removes a bitmap task from the map given the key, provided it hasn't
+     * already been replaced by a newer task for the same key
+     *
+     * @param key    key of the task to remove
+     * @param worker the task to remove
+     */
+    private void removeFromTaskMap(long key, Worker worker)
+    {
+        if (m_bitmapTasks.get(key) == worker)
+        {
+            m_bitmapTasks.remove(key);
+        }
     }
 
     /**
@@ -184,84 +738,117 @@ public class BitmapResolver
      * @param key    Bitmap key
      * @param bitmap Bitmap object
      */
-    private synchronized void addToCache(String key, Bitmap bitmap)
+    private void addToCache(long key, Bitmap bitmap)
     {
         m_cache.put(key, bitmap);
     }
 
     /**
-     * This class holds a weak reference to the worker task that is loading
-     * the bitmap for the ImageView object. It is used to check for
-     * cancellation as the reference to the worker needs to be retrieved
-     * from an ImageView object.
+     * Finds the smallest cached size of an album's artwork that is larger
+     * than the given size bucket, adding a reference for the caller. The
+     * caller must release the reference once it has finished with the bitmap.
+     *
+     * @param albumId The album to find the artwork of
+     * @param bucket  The size bucket that a larger size is needed for
+     *
+     * @return The larger artwork, or null if none is cached.
      */
-    private class AsyncDrawable extends BitmapDrawable
+    private Bitmap acquireLargerCached(long albumId, int bucket)
     {
-        private WeakReference<Worker> m_weakRef;
-
-        AsyncDrawable(Resources resources, Bitmap bitmap, Worker worker)
+        for (int larger = bucket + 1; larger < s_sizeBuckets.length; ++larger)
         {
-            super(resources, bitmap);
-            m_weakRef = new WeakReference<>(worker);
+            Bitmap bitmap = m_cache.peek(getKey(albumId, larger));
+            if (bitmap != null)
+            {
+                acquire(bitmap);
+                return bitmap;
+            }
         }
+        return null;
+    }
 
-        public Worker getWorker()
-        {
-            return m_weakRef.get();
-        }
+    /**
+     * The number of references to a bitmap held by views and workers, and
+     * whether the bitmap has left the cache.
+     */
+    private static class BitmapRefs
+    {
+        int     m_count;
+        boolean m_removed;
     }
 
     /**
      * Async task representing the bitmap retrieval process. Additional listeners
      * can be attached to this class such that we can update multiple ImageView
      * objects after loading a shared bitmap rather than spawning multiple tasks
-     * for identical operations.
+     * for identical operations. Only `doInBackground` runs off the UI thread,
+     * and it only touches the worker's own fields and the thread safe disk
+     * cache and bitmap pool.
      */
     private class Worker extends AsyncTask<Void, Void, Bitmap>
     {
         private List<WeakReference<ImageView>> m_views;
 
-        public Uri     m_uri;
+        public long    m_albumId;
         public int     m_size;
-        public String  m_key;
+        public long    m_key;
 
-        private Bitmap m_bitmap = null;
+        private int    m_priority;
+        private Bitmap m_source;
 
         /**
          * Constructor
          *
-         * @param uri  The URI of the bitmap to load
-         * @param size The size of the bitmap
-         * @param key  The cache key for the bitmap
+         * @param albumId The album to load the artwork of
+         * @param bucket  The size bucket of the bitmap
+         * @param key     The cache key for the bitmap
          */
-        public Worker(Uri uri, int size, String key)
+        public Worker(long albumId, int bucket, long key)
         {
-            m_uri   = uri;
-            m_size  = size;
-            m_key   = key;
-            m_views = new ArrayList<>();
+            m_albumId = albumId;
+            m_size    = s_sizeBuckets[bucket];
+            m_key     = key;
+            m_views   = new ArrayList<>();
         }
 
         @Override
         protected Bitmap doInBackground(Void... params)
         {
+            Bitmap bitmap = null;
             try
             {
-                m_bitmap = MediaStore.Images.Media.getBitmap(m_resolver, m_uri);
-                m_bitmap = Bitmap.createScaledBitmap(m_bitmap, m_size, m_size, true);
+                // Scaling down a larger cached size is much cheaper than
+                // decoding the artwork again. The source is referenced until
+                // the worker finishes, so it can't be pooled in the meantime.
+                if (m_source != null)
+                {
+                    bitmap = scaleBitmap(m_source, m_size, m_bitmapPool);
+                }
 
-                addToCache(m_key, m_bitmap);
+                if (bitmap == null && !isCancelled())
+                {
+                    bitmap = loadArtwork(m_resolver, m_diskCache, m_albumId, m_size, m_bitmapPool);
+                }
             }
-            catch (IOException | NullPointerException e)
+            catch (IOException e)
             {
                 e.printStackTrace();
             }
-            return m_bitmap;
+            return bitmap;
         }
 
         @Override
-        protected synchronized void onPostExecute(Bitmap result)
+        protected void onPostExecute(Bitmap result)
         {
+            removeFromTaskMap(m_key, this);
+            releaseSource();
+
+            if (result == null)
+            {
+                return;
+            }
+            addToCache(m_key, result);
+
             for (WeakReference<ImageView> view : m_views)
             {
                 ImageView imageView = view.get();
@@ -269,27 +856,39 @@ public class BitmapResolver
 
                 if (imageView == null || this != worker) { continue; }
 
-                imageView.setImageBitmap(result);
+                setImageBitmap(imageView, result);
             }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap result)
+        {
+            removeFromTaskMap(m_key, this);
+            releaseSource();
 
-            removeFromTaskMap(m_key);
+            // Nothing else has seen the bitmap, so it can be reused straight
+            // away
+            if (result != null)
+            {
+                m_bitmapPool.put(result);
+            }
+        }
+
+        private void releaseSource()
+        {
+            release(m_source);
+            m_source = null;
         }
 
         /**
          * Adds an ImageView to the list of objects to be notified on task
-         * completion. If the task is already complete (because it hasn't been
-         * removed from the task list yet) the ImageView will be updated
-         * immediately.
+         * completion and binds the ImageView to this task.
          *
          * @param imageView The ImageView to bind
          */
-        synchronized void addViewReference(ImageView imageView)
+        void addViewReference(ImageView imageView)
         {
-            if (m_bitmap != null)
-            {
-                imageView.setImageBitmap(m_bitmap);
-                return;
-            }
+            imageView.setTag(R.id.bitmap_resolver_request, this);
             m_views.add(new WeakReference<>(imageView));
         }
 
@@ -299,7 +898,7 @@ public class BitmapResolver
          *
          * @param view The ImageView reference to remove
          */
-        synchronized void removeViewReference(ImageView view)
+        void removeViewReference(ImageView view)
         {
             List<WeakReference<ImageView>> toRemove = new ArrayList<>();
 
@@ -321,7 +920,7 @@ public class BitmapResolver
             // Cancel the task if we removed the last references
             if (m_views.size() == 0)
             {
-                this.cancel(true);
+                m_scheduler.cancel(this);
             }
         }
     }
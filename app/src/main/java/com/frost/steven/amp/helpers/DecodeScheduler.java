@@ -0,0 +1,277 @@
+package com.frost.steven.amp.helpers;
+
+import android.os.AsyncTask;
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs artwork decodes on a small dedicated pool so they don't compete with
+ * library scans and playlist writes on the shared AsyncTask pool. Queued
+ * decodes are run newest first, since during a fling the newest requests are
+ * for the rows that are on screen, and high priority decodes always run
+ * before low priority ones.
+ *
+ * The low priority and prefetch queues are bounded. When one overflows the
+ * oldest request in it is cancelled, as its view has almost certainly been
+ * recycled. Cancelling a queued task removes it from the queue straight away
+ * rather than leaving it to be skipped when it reaches the front.
+ *
+ * The scheduler can be paused while a list is being flung, in which case only
+ * high priority work is started until it is resumed.
+ */
+class DecodeScheduler
+{
+    static final int PRIORITY_HIGH     = 0;
+    static final int PRIORITY_LOW      = 1;
+    static final int PRIORITY_PREFETCH = 2;
+
+    private static final int   MAX_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+    private static final int[] MAX_PENDING = { Integer.MAX_VALUE, 48, 16 };
+
+    private static DecodeScheduler s_instance;
+
+    private final Deque<Entry>[] m_queues;
+    private final Runnable       m_drain;
+
+    private ThreadPoolExecutor m_executor;
+    private boolean            m_paused;
+
+    /**
+     * Gets the scheduler shared by every bitmap resolver.
+     *
+     * @return The process-wide decode scheduler
+     */
+    static synchronized DecodeScheduler getInstance()
+    {
+        if (s_instance == null)
+        {
+            s_instance = new DecodeScheduler();
+        }
+        return s_instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private DecodeScheduler()
+    {
+        m_queues = new Deque[] { new ArrayDeque<Entry>(), new ArrayDeque<Entry>(), new ArrayDeque<Entry>() };
+
+        // The pool only ever runs this, which takes the best queued decode.
+        // One is submitted per decode, so there are never fewer of these than
+        // queued decodes.
+        m_drain = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Entry entry = poll();
+                if (entry != null)
+                {
+                    entry.m_runnable.run();
+                }
+            }
+        };
+
+        m_executor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    return new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "DecodeScheduler #" + m_count.incrementAndGet());
+                }
+            }
+        );
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a task on the scheduler.
+     *
+     * @param task     The task to run
+     * @param priority The priority of the task, `PRIORITY_HIGH` or
+     *                 `PRIORITY_LOW`
+     */
+    void execute(final AsyncTask<Void, ?, ?> task, final int priority)
+    {
+        task.executeOnExecutor(new Executor()
+        {
+            @Override
+            public void execute(Runnable runnable)
+            {
+                enqueue(new Entry(task, runnable), priority);
+            }
+        });
+    }
+
+    /**
+     * Raises a queued task to the given priority. Tasks that have already
+     * started are not affected.
+     *
+     * @param task     The task to promote
+     * @param priority The new priority of the task
+     */
+    void promote(AsyncTask<?, ?, ?> task, int priority)
+    {
+        boolean drain = false;
+        synchronized (this)
+        {
+            for (int lower = priority + 1; lower < m_queues.length; ++lower)
+            {
+                Entry entry = remove(m_queues[lower], task);
+                if (entry != null)
+                {
+                    m_queues[priority].addFirst(entry);
+
+                    // A drain run while paused left the task queued, so it
+                    // needs another one now that it can be run while paused
+                    drain = m_paused && priority == PRIORITY_HIGH;
+                    break;
+                }
+            }
+        }
+
+        if (drain)
+        {
+            m_executor.execute(m_drain);
+        }
+    }
+
+    /**
+     * Pauses or resumes everything but high priority work. Queued work is
+     * kept while paused.
+     *
+     * @param paused True to pause, false to resume
+     */
+    void setPaused(boolean paused)
+    {
+        int numPending = 0;
+        synchronized (this)
+        {
+            if (m_paused == paused)
+            {
+                return;
+            }
+            m_paused = paused;
+
+            // Drains run while paused left their work queued, so one is
+            // submitted again for each queued task
+            if (!paused)
+            {
+                for (int priority = PRIORITY_LOW; priority < m_queues.length; ++priority)
+                {
+                    numPending += m_queues[priority].size();
+                }
+            }
+        }
+
+        for (int i = 0; i < numPending; ++i)
+        {
+            m_executor.execute(m_drain);
+        }
+    }
+
+    /**
+     * Cancels a task, removing it from the queue if it has not started yet.
+     *
+     * @param task The task to cancel
+     */
+    void cancel(AsyncTask<?, ?, ?> task)
+    {
+        synchronized (this)
+        {
+            for (Deque<Entry> queue : m_queues)
+            {
+                if (remove(queue, task) != null)
+                {
+                    break;
+                }
+            }
+        }
+        task.cancel(true);
+    }
+
+    private void enqueue(Entry entry, int priority)
+    {
+        Entry dropped = null;
+        synchronized (this)
+        {
+            Deque<Entry> queue = m_queues[priority];
+            queue.addFirst(entry);
+            if (queue.size() > MAX_PENDING[priority])
+            {
+                dropped = queue.removeLast();
+            }
+        }
+
+        if (dropped != null)
+        {
+            dropped.m_task.cancel(true);
+        }
+        m_executor.execute(m_drain);
+    }
+
+    private synchronized Entry poll()
+    {
+        int numQueues = m_paused ? PRIORITY_HIGH + 1 : m_queues.length;
+        for (int priority = 0; priority < numQueues; ++priority)
+        {
+            Entry entry = m_queues[priority].pollFirst();
+            if (entry != null)
+            {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static Entry remove(Deque<Entry> queue, AsyncTask<?, ?, ?> task)
+    {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext())
+        {
+            Entry entry = it.next();
+            if (entry.m_task == task)
+            {
+                it.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A queued task along with the runnable that executes it.
+     */
+    private static class Entry
+    {
+        final AsyncTask<?, ?, ?> m_task;
+        final Runnable           m_runnable;
+
+        Entry(AsyncTask<?, ?, ?> task, Runnable runnable)
+        {
+            m_task     = task;
+            m_runnable = runnable;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.frost.steven.amp.helpers;
+
+import android.util.Log;
+
+import com.frost.steven.amp.model.AudioTrack;
+import com.frost.steven.amp.model.TrackStore;
+import com.frost.steven.amp.utils.StringPool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact binary snapshot of a resolved list of audio tracks. The snapshot
+ * is written after a MediaStore scan completes and memory-mapped on the next
+ * launch so the library can be shown before the MediaStore has been queried.
+ *
+ * The file starts with a fixed size header holding a magic number, the format
+ * version, the number of tracks, the payload length and a CRC32 of the
+ * payload. A snapshot with an unknown version or a mismatching checksum is
+ * treated as missing, in which case callers fall back to a normal scan.
+ */
+public class LibrarySnapshot
+{
+    private static final int MAGIC       = 0x414D5053; // "AMPS"
+    private static final int VERSION     = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    private static final Charset s_charset = Charset.forName("UTF-8");
+
+    private File m_file;
+
+    /**
+     * Constructor
+     *
+     * @param file The file backing the snapshot
+     */
+    public LibrarySnapshot(File file)
+    {
+        m_file = file;
+    }
+
+    /**
+     * Maps the snapshot file into memory and decodes the tracks it contains.
+     * This does file I/O and must not be called from the UI thread.
+     *
+     * @param stringPool The pool that the text of the tracks is interned in
+     *
+     * @return The tracks in the snapshot, or null if there is no usable
+     *         snapshot on disk.
+     */
+    public List<AudioTrack> read(StringPool stringPool)
+    {
+        if (!m_file.exists())
+        {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(m_file, "r");
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE)
+            {
+                return null;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int magic         = buffer.getInt();
+            int version       = buffer.getInt();
+            int numTracks     = buffer.getInt();
+            int payloadLength = buffer.getInt();
+            long checksum     = buffer.getLong();
+
+            if (magic != MAGIC || version != VERSION || numTracks < 0 || payloadLength != buffer.remaining())
+            {
+                Log.w(LibrarySnapshot.class.getName(), "Discarding stale library snapshot.");
+                return null;
+            }
+
+            if (computeChecksum(buffer.duplicate()) != checksum)
+            {
+                Log.w(LibrarySnapshot.class.getName(), "Discarding corrupt library snapshot.");
+                return null;
+            }
+
+            List<AudioTrack> tracks = new ArrayList<>(numTracks);
+            TrackStore store = new TrackStore(numTracks, stringPool);
+            byte[] scratch = new byte[256];
+
+            for (int i = 0; i < numTracks; ++i)
+            {
+                long id            = buffer.getLong();
+                long albumId       = buffer.getLong();
+                int duration       = buffer.getInt();
+                boolean hasArtwork = buffer.get() != 0;
+
+                String title  = readString(buffer, scratch);
+                String artist = readString(buffer, scratch);
+                String album  = readString(buffer, scratch);
+                String data   = readString(buffer, scratch);
+
+                tracks.add(store.add(id, albumId, hasArtwork, title, artist, album, data, duration));
+            }
+            return tracks;
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException ex)
+        {
+            Log.w(LibrarySnapshot.class.getName(), "Unable to read library snapshot.", ex);
+            return null;
+        }
+        finally
+        {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Replaces the snapshot on disk with the given tracks. The snapshot is
+     * written to a temporary file first and then renamed over the existing
+     * one so a partially written snapshot is never observed. This does file
+     * I/O and must not be called from the UI thread.
+     *
+     * @param tracks The tracks to persist
+     *
+     * @return True if the snapshot was written, false otherwise.
+     */
+    public boolean write(List<AudioTrack> tracks)
+    {
+        File tempFile = new File(m_file.getPath() + ".tmp");
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(tempFile, "rw");
+            file.setLength(0);
+            file.seek(HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            DataOutputStream stream = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file.getFD())), crc
+            ));
+
+            for (AudioTrack track : tracks)
+            {
+                stream.writeLong(track.getId());
+                stream.writeLong(track.getAlbumId());
+                stream.writeInt(track.getDuration());
+                stream.writeBoolean(track.hasCoverArt());
+
+                writeString(stream, track.getTitle());
+                writeString(stream, track.getArtist());
+                writeString(stream, track.getAlbum());
+                writeString(stream, track.getData());
+            }
+            stream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(tracks.size());
+            header.putInt(stream.size());
+            header.putLong(crc.getValue());
+            header.flip();
+
+            file.getChannel().write(header, 0);
+            file.getFD().sync();
+            file.close();
+            file = null;
+
+            if (!tempFile.renameTo(m_file))
+            {
+                throw new IOException("Unable to replace '" + m_file.getPath() + "'.");
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            Log.e(LibrarySnapshot.class.getName(), "Unable to write library snapshot.", ex);
+            closeQuietly(file);
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Removes the snapshot from disk, forcing the next launch to perform a
+     * full scan.
+     */
+    public void delete()
+    {
+        m_file.delete();
+    }
+
+    /**
+     * Computes the CRC32 of the remaining bytes in the buffer. The buffer
+     * position is advanced to its limit.
+     *
+     * @param buffer The buffer to checksum
+     *
+     * @return The checksum value
+     */
+    private static long computeChecksum(ByteBuffer buffer)
+    {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string. A negative length denotes null.
+     *
+     * @param buffer  The buffer to read from
+     * @param scratch Scratch space, used when the string is small enough
+     *
+     * @return The decoded string
+     */
+    private static String readString(ByteBuffer buffer, byte[] scratch)
+    {
+        int length = buffer.getInt();
+        if (length < 0)
+        {
+            return null;
+        }
+
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, s_charset);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string. Null is written as a negative
+     * length.
+     *
+     * @param stream The stream to write to
+     * @param value  The string to write
+     */
+    private static void writeString(DataOutputStream stream, String value) throws IOException
+    {
+        if (value == null)
+        {
+            stream.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(s_charset);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static void closeQuietly(RandomAccessFile file)
+    {
+        if (file != null)
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
@@ -1,33 +1,101 @@
 package com.frost.steven.amp.model;
 
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
 import android.net.Uri;
+import android.provider.MediaStore;
 
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.utils.StringPool;
+
+import java.util.Comparator;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Basic representation of an audio track that holds the title, artist, album
- * and any available cover art in a single structure that can be bound to a
- * list or detailed layout.
+ * Basic representation of an audio track that exposes the title, artist,
+ * album and any available cover art in a single structure that can be bound
+ * to a list or detailed layout. The track is a view over a single row of a
+ * `TrackStore`, which holds the actual data.
  */
 public class AudioTrack
 {
-    public long   ID;       /** Track ID                       */
-    public String Title;    /** Track title                    */
-    public String Artist;   /** Primary artist                 */
-    public String Album;    /** Album name                     */
-    public String Data;     /** Track location in storage      */
-    public Uri    CoverArt; /** Cover art URI                  */
-    public int    Duration; /** Track duration in milliseconds */
+    /** Orders tracks by title, matching a MediaStore `TITLE` sort */
+    public static final Comparator<AudioTrack> TITLE_ORDER = new Comparator<AudioTrack>()
+    {
+        @Override
+        public int compare(AudioTrack lhs, AudioTrack rhs)
+        {
+            String lhsTitle = lhs.getTitle();
+            String rhsTitle = rhs.getTitle();
+            if (lhsTitle == null || rhsTitle == null)
+            {
+                return lhsTitle == null ? (rhsTitle == null ? 0 : -1) : 1;
+            }
+            return lhsTitle.compareTo(rhsTitle);
+        }
+    };
+
+    private final TrackStore m_store;
+    private final int        m_row;
+
+    AudioTrack(TrackStore store, int row)
+    {
+        m_store = store;
+        m_row   = row;
+    }
+
+    /** @return Track ID */
+    public long getId()
+    {
+        return m_store.getId(m_row);
+    }
+
+    /** @return MediaStore album ID */
+    public long getAlbumId()
+    {
+        return m_store.getAlbumId(m_row);
+    }
 
-    public AudioTrack(long id, String title, String artist, String album, String data, Uri coverArt, int duration)
+    /** @return Track title */
+    public String getTitle()
     {
-        ID       = id;
-        Title    = title;
-        Artist   = artist;
-        Album    = album;
-        Data     = data;
-        CoverArt = coverArt;
-        Duration = duration;
+        return m_store.getTitle(m_row);
+    }
+
+    /** @return Primary artist */
+    public String getArtist()
+    {
+        return m_store.getArtist(m_row);
+    }
+
+    /** @return Album name */
+    public String getAlbum()
+    {
+        return m_store.getAlbum(m_row);
+    }
+
+    /** @return Track location in storage */
+    public String getData()
+    {
+        return m_store.getData(m_row);
+    }
+
+    /** @return Track duration in milliseconds */
+    public int getDuration()
+    {
+        return m_store.getDuration(m_row);
+    }
+
+    /** @return True if the album has cover art, false otherwise. */
+    public boolean hasCoverArt()
+    {
+        return m_store.hasArtwork(m_row);
+    }
+
+    /** @return Cover art URI, or null if the album has no cover art. */
+    public Uri getCoverArt()
+    {
+        return hasCoverArt() ? ArtworkIndex.getAlbumArtworkUri(getAlbumId()) : null;
     }
 
     /**
@@ -37,7 +105,31 @@ public class AudioTrack
      */
     public String getFormattedDuration()
     {
-        return formatDuration(Duration);
+        return formatDuration(getDuration());
+    }
+
+    /**
+     * Determines if the given track holds exactly the same data as this one.
+     *
+     * @param other the track to compare against
+     *
+     * @return true if every field matches, false otherwise.
+     */
+    public boolean contentEquals(AudioTrack other)
+    {
+        return getId() == other.getId() &&
+            getAlbumId() == other.getAlbumId() &&
+            getDuration() == other.getDuration() &&
+            hasCoverArt() == other.hasCoverArt() &&
+            equals(getTitle(), other.getTitle()) &&
+            equals(getArtist(), other.getArtist()) &&
+            equals(getAlbum(), other.getAlbum()) &&
+            equals(getData(), other.getData());
+    }
+
+    private static boolean equals(Object lhs, Object rhs)
+    {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
     }
 
     /**
@@ -54,4 +146,211 @@ public class AudioTrack
             TimeUnit.MILLISECONDS.toSeconds(milliseconds) % TimeUnit.MINUTES.toSeconds(1)
         );
     }
+
+    /**
+     * Builds audio tracks from the rows of a MediaStore cursor that was
+     * queried with `PROJECTION`. Column indices are resolved once when the
+     * reader is created rather than for every row, and every track read is
+     * stored in a single track store sized for the whole cursor. The title,
+     * artist and album are copied into a reusable buffer and interned
+     * directly, so no string is allocated for values that have been seen
+     * before. Track locations are unique, so they are read as plain strings.
+     */
+    static class CursorReader
+    {
+        static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_MODIFIED
+        };
+
+        private ArtworkIndex    m_artworkIndex;
+        private TrackStore      m_store;
+        private StringPool      m_stringPool;
+        private CharArrayBuffer m_buffer;
+        private long            m_initialBytesSaved;
+
+        private final int m_idIdx;
+        private final int m_albumIdIdx;
+        private final int m_titleIdx;
+        private final int m_artistIdx;
+        private final int m_albumIdx;
+        private final int m_dataIdx;
+        private final int m_durationIdx;
+        private final int m_dateModifiedIdx;
+
+        /**
+         * Constructor
+         *
+         * @param artworkIndex Index used to look up album artwork
+         * @param cursor       The cursor that rows will be read from
+         * @param stringPool   The pool of the scan that the rows belong to
+         */
+        CursorReader(ArtworkIndex artworkIndex, Cursor cursor, StringPool stringPool)
+        {
+            m_artworkIndex = artworkIndex;
+            m_store        = new TrackStore(cursor.getCount(), stringPool);
+            m_stringPool   = stringPool;
+            m_buffer       = new CharArrayBuffer(128);
+
+            m_initialBytesSaved = m_stringPool.getBytesSaved();
+
+            m_idIdx           = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            m_albumIdIdx      = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            m_titleIdx        = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            m_artistIdx       = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            m_albumIdx        = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            m_dataIdx         = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+            m_durationIdx     = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            m_dateModifiedIdx = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+        }
+
+        /**
+         * Creates an audio track from the current cursor row.
+         *
+         * @param cursor The cursor positioned at the row to read
+         *
+         * @return The audio track
+         */
+        AudioTrack read(Cursor cursor)
+        {
+            long id      = cursor.getLong(m_idIdx);
+            long albumId = cursor.getLong(m_albumIdIdx);
+            int title    = intern(cursor, m_titleIdx);
+            int artist   = intern(cursor, m_artistIdx);
+            int album    = intern(cursor, m_albumIdx);
+            String data  = cursor.getString(m_dataIdx);
+            int duration = cursor.getInt(m_durationIdx);
+
+            boolean hasArtwork = m_artworkIndex.hasArtwork(albumId);
+            return m_store.addInterned(id, albumId, hasArtwork, title, artist, album, data, duration);
+        }
+
+        /**
+         * Interns a text column of the current cursor row.
+         *
+         * @param cursor      The cursor positioned at the row to read
+         * @param columnIndex The column to read
+         *
+         * @return The string pool ID of the value
+         */
+        private int intern(Cursor cursor, int columnIndex)
+        {
+            if (cursor.isNull(columnIndex))
+            {
+                return StringPool.NULL_ID;
+            }
+
+            cursor.copyStringToBuffer(columnIndex, m_buffer);
+            return m_stringPool.intern(m_buffer);
+        }
+
+        /**
+         * Determines whether the current cursor row holds exactly the data of
+         * a track. Text is compared through the reusable buffer, so nothing
+         * is allocated or added to the store.
+         *
+         * @param cursor The cursor positioned at the row to compare
+         * @param track  The track to compare against
+         *
+         * @return true if every field matches, false otherwise.
+         */
+        boolean matches(Cursor cursor, AudioTrack track)
+        {
+            long albumId = cursor.getLong(m_albumIdIdx);
+            return cursor.getLong(m_idIdx) == track.getId() &&
+                albumId == track.getAlbumId() &&
+                cursor.getInt(m_durationIdx) == track.getDuration() &&
+                m_artworkIndex.hasArtwork(albumId) == track.hasCoverArt() &&
+                matches(cursor, m_titleIdx, track.getTitle()) &&
+                matches(cursor, m_artistIdx, track.getArtist()) &&
+                matches(cursor, m_albumIdx, track.getAlbum()) &&
+                matches(cursor, m_dataIdx, track.getData());
+        }
+
+        private boolean matches(Cursor cursor, int columnIndex, String value)
+        {
+            if (cursor.isNull(columnIndex))
+            {
+                return value == null;
+            }
+            if (value == null)
+            {
+                return false;
+            }
+
+            cursor.copyStringToBuffer(columnIndex, m_buffer);
+            int length = m_buffer.sizeCopied;
+            if (length != value.length())
+            {
+                return false;
+            }
+            for (int i = 0; i < length; ++i)
+            {
+                if (m_buffer.data[i] != value.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gets the ID of the current cursor row.
+         *
+         * @param cursor The cursor positioned at the row to read
+         *
+         * @return The MediaStore track ID
+         */
+        long getId(Cursor cursor)
+        {
+            return cursor.getLong(m_idIdx);
+        }
+
+        /**
+         * Gets the album ID of the current cursor row.
+         *
+         * @param cursor The cursor positioned at the row to read
+         *
+         * @return The MediaStore album ID
+         */
+        long getAlbumId(Cursor cursor)
+        {
+            return cursor.getLong(m_albumIdIdx);
+        }
+
+        /**
+         * @return Estimated bytes saved by interning the text of every track
+         *         read so far
+         */
+        long getStringBytesSaved()
+        {
+            return m_stringPool.getBytesSaved() - m_initialBytesSaved;
+        }
+
+        /**
+         * @return The store holding every track read so far
+         */
+        TrackStore getStore()
+        {
+            return m_store;
+        }
+
+        /**
+         * Gets the modification time of the current cursor row.
+         *
+         * @param cursor The cursor positioned at the row to read
+         *
+         * @return The modification time in seconds since the epoch
+         */
+        long getDateModified(Cursor cursor)
+        {
+            return cursor.getLong(m_dateModifiedIdx);
+        }
+    }
 }
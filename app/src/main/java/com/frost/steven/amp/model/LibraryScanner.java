@@ -0,0 +1,461 @@
+package com.frost.steven.amp.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.annotation.Nullable;
+
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.helpers.LibrarySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Scans the MediaStore once and builds the master playlist, the album list
+ * and the per-artist track groupings from the same background task. The
+ * albums table, which has one row per album, is read for the title, artist,
+ * year and artwork of each album before the tracks are scanned, so the
+ * artwork it reports seeds the artwork index used by the track scan. The
+ * number of tracks on each album and the artist groupings are built from the
+ * tracks the scan reads, so the audio table is only read once.
+ *
+ * Tracks published to the playlist, whether restored from a snapshot or read
+ * by a scan without one, are grouped on the UI thread as each batch arrives,
+ * so the albums and artists fill in along with the track list. When a
+ * restored playlist is reconciled against the MediaStore the scanned tracks
+ * are grouped on the background thread instead and replace the groupings
+ * once the scan is complete.
+ *
+ * The albums table also covers ringtones, notification sounds and alarms, so
+ * only albums with at least one music track are listed. Once the library has
+ * been scanned, `applyChanges` keeps the groupings in sync with the changes
+ * found by `LibrarySync`, reading only the rows of the albums those changes
+ * touch.
+ *
+ * MediaStore playlists live in a separate table and are still loaded by
+ * `DBPlaylist.ListCreator`.
+ */
+public class LibraryScanner extends Playlist.ListCreator
+{
+    private static final String   s_albumOrderBy    = MediaStore.Audio.Albums.ALBUM + " ASC";
+    private static final String[] s_albumProjection = {
+        MediaStore.Audio.Albums._ID,
+        MediaStore.Audio.Albums.ALBUM,
+        MediaStore.Audio.Albums.ARTIST,
+        MediaStore.Audio.Albums.FIRST_YEAR,
+        MediaStore.Audio.Albums.ALBUM_ART
+    };
+
+    private static final Comparator<Album> s_albumOrder = new Comparator<Album>()
+    {
+        @Override
+        public int compare(Album lhs, Album rhs)
+        {
+            if (lhs.Title == null) { return rhs.Title == null ? 0 : -1; }
+            if (rhs.Title == null) { return 1; }
+            return lhs.Title.compareTo(rhs.Title);
+        }
+    };
+
+    private ContentResolver m_contentResolver;
+    private ArtworkIndex    m_artworkIndex;
+    private Handler         m_handler;
+
+    // Owned by the UI thread
+    private Map<Long, Album>                   m_albumRows;
+    private Map<Long, Integer>                 m_albumCounts;
+    private List<Album>                        m_albums;
+    private Map<String, List<AudioTrack>>      m_artists;
+    private List<OnAlbumsChangedListener>      m_albumsListeners;
+    private Set<Long>                          m_pendingAlbumIds;
+    private AlbumsTask                         m_albumsTask;
+
+    // Owned by the background thread while a restored playlist is reconciled
+    private Map<Long, Integer>                 m_scanAlbumCounts;
+    private Map<String, List<AudioTrack>>      m_scanArtists;
+
+    /**
+     * Constructor
+     *
+     * @param context  context used to access the MediaStore
+     * @param playlist the playlist to populate with every track
+     * @param orderBy  ordering criteria for the playlist
+     * @param snapshot optional snapshot to restore the playlist from
+     */
+    public LibraryScanner(Context context, Playlist playlist, @Nullable String orderBy, @Nullable LibrarySnapshot snapshot)
+    {
+        super(context, playlist, null, orderBy);
+        setSnapshot(snapshot);
+
+        m_contentResolver = context.getContentResolver();
+        m_artworkIndex    = ArtworkIndex.getInstance(context);
+        m_handler         = new Handler(Looper.getMainLooper());
+
+        m_albumRows       = new HashMap<>();
+        m_albumCounts     = new HashMap<>();
+        m_albums          = new ArrayList<>();
+        m_artists         = new TreeMap<>();
+        m_albumsListeners = new ArrayList<>();
+        m_pendingAlbumIds = new HashSet<>();
+    }
+
+    @Override
+    protected void onScanStarted(boolean publishing)
+    {
+        if (!publishing)
+        {
+            m_scanAlbumCounts = new HashMap<>();
+            m_scanArtists     = new TreeMap<>();
+        }
+
+        final Map<Long, Album> albumRows = queryAlbumRows(null);
+        if (albumRows == null) { return; }
+
+        m_handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                m_albumRows.putAll(albumRows);
+                publishGroups();
+            }
+        });
+    }
+
+    @Override
+    protected void onTrackScanned(AudioTrack track)
+    {
+        if (m_scanAlbumCounts != null)
+        {
+            addTrack(m_scanAlbumCounts, m_scanArtists, track);
+        }
+    }
+
+    @Override
+    protected void onScanCompleted()
+    {
+        if (m_scanAlbumCounts == null) { return; }
+
+        final Map<Long, Integer> albumCounts = m_scanAlbumCounts;
+        final Map<String, List<AudioTrack>> artists = m_scanArtists;
+        m_scanAlbumCounts = null;
+        m_scanArtists     = null;
+
+        m_handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                m_albumCounts = albumCounts;
+                m_artists.clear();
+                m_artists.putAll(artists);
+                publishGroups();
+            }
+        });
+    }
+
+    @Override
+    protected void onProgressUpdate(AudioTrack... batch)
+    {
+        super.onProgressUpdate(batch);
+
+        for (AudioTrack track : batch)
+        {
+            addTrack(m_albumCounts, m_artists, track);
+        }
+        publishGroups();
+    }
+
+    /**
+     * Applies tracks that were changed, added or removed after the library
+     * was scanned. The album and artist groupings are updated straight away
+     * and the albums table is read again only for the albums of those tracks,
+     * in the background. This must be called on the UI thread.
+     *
+     * @param removedTracks the tracks that were removed, along with the old
+     *                      version of any track that was changed
+     * @param addedTracks   the tracks that were added, along with the new
+     *                      version of any track that was changed
+     */
+    public void applyChanges(List<AudioTrack> removedTracks, List<AudioTrack> addedTracks)
+    {
+        for (AudioTrack track : removedTracks)
+        {
+            removeTrack(m_albumCounts, m_artists, track);
+            m_pendingAlbumIds.add(track.getAlbumId());
+        }
+        for (AudioTrack track : addedTracks)
+        {
+            addTrack(m_albumCounts, m_artists, track);
+            m_pendingAlbumIds.add(track.getAlbumId());
+        }
+        publishGroups();
+
+        // A read that is already running finishes first so the rows it
+        // returns can never overwrite newer ones
+        if (m_albumsTask == null)
+        {
+            startAlbumsTask();
+        }
+    }
+
+    /**
+     * Gets the albums in the library, ordered by title. The list is empty
+     * until the albums table has been read and is updated in place on the UI
+     * thread.
+     *
+     * @return the album list
+     */
+    public List<Album> getAlbums()
+    {
+        return m_albums;
+    }
+
+    /**
+     * Gets the tracks of every artist, keyed and ordered by artist name.
+     * Tracks without an artist are listed under `MediaStore.UNKNOWN_STRING`.
+     * The map is updated in place on the UI thread at the same time as the
+     * album list, so album listeners are notified of artist changes too.
+     *
+     * @return the tracks of each artist
+     */
+    public Map<String, List<AudioTrack>> getArtists()
+    {
+        return m_artists;
+    }
+
+    public void addAlbumsListener(OnAlbumsChangedListener listener)
+    {
+        m_albumsListeners.add(listener);
+    }
+
+    public void removeAlbumsListener(OnAlbumsChangedListener listener)
+    {
+        m_albumsListeners.remove(listener);
+    }
+
+    /**
+     * Reads rows from the albums table. This does I/O and must not be called
+     * from the UI thread.
+     *
+     * @param albumIds the albums to read, or null to read every album
+     *
+     * @return the albums keyed by ID, or null if the query failed
+     */
+    private Map<Long, Album> queryAlbumRows(@Nullable Collection<Long> albumIds)
+    {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (albumIds != null)
+        {
+            StringBuilder builder = new StringBuilder(MediaStore.Audio.Albums._ID + " IN (");
+            selectionArgs = new String[albumIds.size()];
+            int i = 0;
+            for (long albumId : albumIds)
+            {
+                builder.append(i == 0 ? "?" : ",?");
+                selectionArgs[i++] = Long.toString(albumId);
+            }
+            selection = builder.append(')').toString();
+        }
+
+        Cursor cursor = m_contentResolver.query(
+            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+            s_albumProjection,
+            selection,
+            selectionArgs,
+            s_albumOrderBy
+        );
+        if (cursor == null) { return null; }
+
+        final int idIdx       = cursor.getColumnIndex(MediaStore.Audio.Albums._ID);
+        final int titleIdx    = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM);
+        final int artistIdx   = cursor.getColumnIndex(MediaStore.Audio.Albums.ARTIST);
+        final int yearIdx     = cursor.getColumnIndex(MediaStore.Audio.Albums.FIRST_YEAR);
+        final int albumArtIdx = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ART);
+
+        Map<Long, Album> albums = new HashMap<>(cursor.getCount() * 2);
+        while (cursor.moveToNext())
+        {
+            long albumId  = cursor.getLong(idIdx);
+            String title  = cursor.getString(titleIdx);
+            String artist = cursor.getString(artistIdx);
+            int year      = cursor.getInt(yearIdx);
+
+            // A cached artwork path proves the album has artwork. A missing
+            // path does not prove the opposite, as the MediaStore can still
+            // extract artwork embedded in the tracks, so those albums are
+            // left for the artwork index to probe.
+            if (!cursor.isNull(albumArtIdx))
+            {
+                m_artworkIndex.recordArtwork(albumId);
+            }
+
+            Uri artwork = m_artworkIndex.hasArtwork(albumId) ? ArtworkIndex.getAlbumArtworkUri(albumId) : null;
+            albums.put(albumId, new Album(albumId, title, artist, artwork, 0, year));
+        }
+
+        cursor.close();
+        return albums;
+    }
+
+    private void startAlbumsTask()
+    {
+        if (m_pendingAlbumIds.isEmpty()) { return; }
+
+        m_albumsTask = new AlbumsTask(new ArrayList<>(m_pendingAlbumIds));
+        m_pendingAlbumIds.clear();
+        m_albumsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Rebuilds the album list from the album rows and track counts and
+     * notifies any listeners. This runs on the UI thread so the list is
+     * never modified while it is being bound.
+     */
+    private void publishGroups()
+    {
+        m_albums.clear();
+        for (Album album : m_albumRows.values())
+        {
+            Integer numTracks = m_albumCounts.get(album.AlbumID);
+            if (numTracks == null) { continue; }
+
+            album.NumTracks = numTracks;
+            m_albums.add(album);
+        }
+        Collections.sort(m_albums, s_albumOrder);
+
+        for (OnAlbumsChangedListener listener : m_albumsListeners)
+        {
+            listener.onAlbumsChanged();
+        }
+    }
+
+    private static void addTrack(Map<Long, Integer> albumCounts, Map<String, List<AudioTrack>> artists, AudioTrack track)
+    {
+        Integer count = albumCounts.get(track.getAlbumId());
+        albumCounts.put(track.getAlbumId(), count == null ? 1 : count + 1);
+
+        String artist = getArtistKey(track);
+        List<AudioTrack> tracks = artists.get(artist);
+        if (tracks == null)
+        {
+            tracks = new ArrayList<>();
+            artists.put(artist, tracks);
+        }
+        tracks.add(track);
+    }
+
+    private static void removeTrack(Map<Long, Integer> albumCounts, Map<String, List<AudioTrack>> artists, AudioTrack track)
+    {
+        Integer count = albumCounts.get(track.getAlbumId());
+        if (count != null)
+        {
+            if (count > 1)
+            {
+                albumCounts.put(track.getAlbumId(), count - 1);
+            }
+            else
+            {
+                albumCounts.remove(track.getAlbumId());
+            }
+        }
+
+        // Tracks are matched by ID, the grouped instance may have been read
+        // by a different scan than the one being removed
+        String artist = getArtistKey(track);
+        List<AudioTrack> tracks = artists.get(artist);
+        if (tracks == null) { return; }
+
+        Iterator<AudioTrack> it = tracks.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().getId() == track.getId())
+            {
+                it.remove();
+                break;
+            }
+        }
+        if (tracks.isEmpty())
+        {
+            artists.remove(artist);
+        }
+    }
+
+    private static String getArtistKey(AudioTrack track)
+    {
+        String artist = track.getArtist();
+        return artist == null ? MediaStore.UNKNOWN_STRING : artist;
+    }
+
+    /**
+     * Async task that reads the albums table again for the albums touched by
+     * a library change.
+     */
+    private class AlbumsTask extends AsyncTask<Void, Void, Map<Long, Album>>
+    {
+        private List<Long> m_albumIds;
+
+        AlbumsTask(List<Long> albumIds)
+        {
+            m_albumIds = albumIds;
+        }
+
+        @Override
+        protected Map<Long, Album> doInBackground(Void... params)
+        {
+            Map<Long, Album> albums = queryAlbumRows(m_albumIds);
+            m_artworkIndex.save();
+            return albums;
+        }
+
+        @Override
+        protected void onPostExecute(Map<Long, Album> albums)
+        {
+            m_albumsTask = null;
+            if (albums != null)
+            {
+                // Albums that are no longer in the table have been deleted
+                for (long albumId : m_albumIds)
+                {
+                    Album album = albums.get(albumId);
+                    if (album == null)
+                    {
+                        m_albumRows.remove(albumId);
+                    }
+                    else
+                    {
+                        m_albumRows.put(albumId, album);
+                    }
+                }
+                publishGroups();
+            }
+            startAlbumsTask();
+        }
+    }
+
+    /**
+     * Notified on the UI thread each time the album list or the artist
+     * groupings change.
+     */
+    public interface OnAlbumsChangedListener
+    {
+        void onAlbumsChanged();
+    }
+}
@@ -0,0 +1,584 @@
+package com.frost.steven.amp.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.annotation.Nullable;
+
+import com.frost.steven.amp.helpers.ArtworkDiskCache;
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.helpers.LibrarySnapshot;
+import com.frost.steven.amp.utils.StringPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a library playlist in step with the MediaStore without rescanning the
+ * whole library. A content observer on the audio table schedules a sync when
+ * the MediaStore reports a change. These notifications are debounced as the
+ * MediaStore is noisy and will report changes when tracks are simply accessed.
+ *
+ * Each sync only fetches rows that were added or modified since the previous
+ * sync watermark, which is the latest modification time seen along with the
+ * largest track ID modified at that time, so a row is only fetched again once
+ * it has actually changed. Rows that were touched without their content
+ * changing are dropped before their artwork is invalidated. Removals are
+ * detected by comparing the number of rows in the MediaStore against the
+ * number expected, and the set of track IDs is only read when they differ.
+ * The resulting delta is then applied to the playlist in place, so the cost
+ * of a sync depends on the size of the change rather than the size of the
+ * library.
+ */
+public class LibrarySync
+{
+    private static final long     DEBOUNCE_DELAY = 1000; // ms
+    private static final String   s_selection    = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+    private static final String[] s_idProjection = { MediaStore.Audio.Media._ID };
+    private static final String[] s_countProjection = { "count(*)" };
+
+    private ContentResolver        m_contentResolver;
+    private ArtworkIndex           m_artworkIndex;
+    private ArtworkDiskCache       m_artworkDiskCache;
+    private Playlist               m_playlist;
+    private Comparator<AudioTrack> m_order;
+    private LibrarySnapshot        m_snapshot;
+    private StringPool             m_stringPool;
+
+    private Handler         m_handler;
+    private ContentObserver m_observer;
+
+    private List<OnLibraryChangedListener> m_listeners;
+
+    // Only modified on the UI thread while no sync task is running, so the
+    // running task can read it
+    private Map<Long, AudioTrack> m_tracksById;
+
+    private long     m_maxTrackId;
+    private long     m_maxDateModified;
+    private long     m_maxDateModifiedTrackId;
+    private SyncTask m_syncTask;
+    private boolean  m_syncPending;
+    private boolean  m_started;
+
+    private Runnable m_syncRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            sync();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context         Context used to access the MediaStore
+     * @param playlist        The playlist holding every track in the library
+     * @param order           The order of the tracks in the playlist, used to
+     *                        position newly inserted tracks
+     * @param snapshot        Optional snapshot to rewrite after each change
+     * @param stringPool      The pool of the scan that built the playlist,
+     *                        which changed tracks are interned in
+     */
+    public LibrarySync(Context context, Playlist playlist, Comparator<AudioTrack> order, @Nullable LibrarySnapshot snapshot, StringPool stringPool)
+    {
+        m_contentResolver  = context.getContentResolver();
+        m_artworkIndex     = ArtworkIndex.getInstance(context);
+        m_artworkDiskCache = ArtworkDiskCache.getInstance(context);
+        m_playlist         = playlist;
+        m_order            = order;
+        m_snapshot         = snapshot;
+        m_stringPool       = stringPool;
+
+        m_handler          = new Handler(Looper.getMainLooper());
+        m_listeners        = new ArrayList<>();
+        m_observer         = new ContentObserver(m_handler)
+        {
+            @Override
+            public void onChange(boolean selfChange)
+            {
+                scheduleSync();
+            }
+        };
+    }
+
+    /**
+     * Starts listening for MediaStore changes. The watermarks should describe
+     * the scan that populated the playlist so changes made after the scan are
+     * picked up by the first sync.
+     *
+     * @param maxTrackId             The largest track ID in the playlist
+     * @param maxDateModified        The most recent modification time in the
+     *                               playlist, in seconds since the epoch
+     * @param maxDateModifiedTrackId The largest ID of the tracks modified at
+     *                               `maxDateModified`
+     */
+    public void start(long maxTrackId, long maxDateModified, long maxDateModifiedTrackId)
+    {
+        if (m_started)
+        {
+            return;
+        }
+
+        m_started                = true;
+        m_maxTrackId             = maxTrackId;
+        m_maxDateModified        = maxDateModified;
+        m_maxDateModifiedTrackId = maxDateModifiedTrackId;
+
+        m_tracksById = new HashMap<>();
+        for (AudioTrack track : m_playlist.getUnshuffledTracks())
+        {
+            m_tracksById.put(track.getId(), track);
+        }
+
+        m_contentResolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, m_observer);
+    }
+
+    /**
+     * Stops listening for MediaStore changes and cancels any sync in progress.
+     */
+    public void stop()
+    {
+        if (!m_started)
+        {
+            return;
+        }
+
+        m_started = false;
+        m_contentResolver.unregisterContentObserver(m_observer);
+        m_handler.removeCallbacks(m_syncRunnable);
+
+        if (m_syncTask != null)
+        {
+            m_syncTask.cancel(true);
+            m_syncTask = null;
+        }
+        m_syncPending = false;
+    }
+
+    public void addListener(OnLibraryChangedListener listener)
+    {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(OnLibraryChangedListener listener)
+    {
+        m_listeners.remove(listener);
+    }
+
+    /**
+     * Schedules a sync after the debounce delay, replacing any sync that is
+     * already scheduled.
+     */
+    private void scheduleSync()
+    {
+        m_handler.removeCallbacks(m_syncRunnable);
+        m_handler.postDelayed(m_syncRunnable, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Starts a sync task. If a sync is already running another one is started
+     * once it completes so no change notification is lost.
+     */
+    private void sync()
+    {
+        if (!m_started)
+        {
+            return;
+        }
+
+        if (m_syncTask != null)
+        {
+            m_syncPending = true;
+            return;
+        }
+
+        m_syncTask = new SyncTask(m_maxTrackId, m_maxDateModified, m_maxDateModifiedTrackId);
+        m_syncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Applies the changes found by a sync to the playlist and notifies any
+     * listeners if the playlist changed as a result.
+     *
+     * @param delta The changes to apply
+     */
+    private void applyDelta(Delta delta)
+    {
+        m_maxTrackId             = delta.m_maxTrackId;
+        m_maxDateModified        = delta.m_maxDateModified;
+        m_maxDateModifiedTrackId = delta.m_maxDateModifiedTrackId;
+
+        if (delta.m_removedIds.isEmpty() && delta.m_changedTracks.isEmpty())
+        {
+            return;
+        }
+
+        // Positions are looked up once, before anything moves. Edits that
+        // keep their position are applied in place, everything else is
+        // removed from the highest position down so the remaining positions
+        // stay valid, and then inserted in order.
+        Map<Long, Integer> positions = getPositions();
+        List<Integer> removals = new ArrayList<>();
+        List<AudioTrack> insertions = new ArrayList<>();
+        List<AudioTrack> removedTracks = new ArrayList<>();
+        List<AudioTrack> addedTracks = new ArrayList<>();
+
+        for (long trackId : delta.m_removedIds)
+        {
+            Integer position = positions.get(trackId);
+            if (position != null)
+            {
+                removals.add(position);
+                removedTracks.add(m_tracksById.remove(trackId));
+            }
+        }
+
+        int numChanges = removals.size();
+        for (AudioTrack track : delta.m_changedTracks)
+        {
+            Integer position = positions.get(track.getId());
+            if (position == null)
+            {
+                insertions.add(track);
+            }
+            else
+            {
+                AudioTrack existing = m_playlist.getUnshuffledTrack(position);
+                if (existing.contentEquals(track))
+                {
+                    continue;
+                }
+
+                // Edits that change where the track sorts have to move it
+                if (m_order.compare(existing, track) == 0)
+                {
+                    m_playlist.setTrack(position, track);
+                    ++numChanges;
+                }
+                else
+                {
+                    removals.add(position);
+                    insertions.add(track);
+                }
+                removedTracks.add(existing);
+            }
+            addedTracks.add(track);
+            m_tracksById.put(track.getId(), track);
+        }
+
+        Collections.sort(removals, Collections.<Integer>reverseOrder());
+        for (int position : removals)
+        {
+            m_playlist.removeTrack(position);
+        }
+
+        numChanges += insertions.size();
+        for (AudioTrack track : insertions)
+        {
+            m_playlist.insertTrack(findInsertPosition(track), track);
+        }
+
+        if (numChanges == 0)
+        {
+            return;
+        }
+
+        for (OnLibraryChangedListener listener : m_listeners)
+        {
+            listener.onLibraryChanged(removedTracks, addedTracks);
+        }
+
+        if (m_snapshot != null)
+        {
+            new SnapshotWriteTask(m_snapshot, m_playlist.getUnshuffledTracks()).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Maps the ID of every track in the playlist to its unshuffled position.
+     *
+     * @return The position of each track
+     */
+    private Map<Long, Integer> getPositions()
+    {
+        List<AudioTrack> tracks = m_playlist.getUnshuffledTracks();
+        Map<Long, Integer> positions = new HashMap<>(tracks.size() * 2);
+        for (int i = 0; i < tracks.size(); ++i)
+        {
+            positions.put(tracks.get(i).getId(), i);
+        }
+        return positions;
+    }
+
+    /**
+     * Finds the position the given track should be inserted at to keep the
+     * playlist in order.
+     *
+     * @param track The track to insert
+     *
+     * @return The unshuffled insert position
+     */
+    private int findInsertPosition(AudioTrack track)
+    {
+        int low = 0;
+        int high = m_playlist.getNumTracks();
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (m_order.compare(m_playlist.getUnshuffledTrack(mid), track) <= 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The changes found by a single sync.
+     */
+    private static class Delta
+    {
+        List<AudioTrack> m_changedTracks = new ArrayList<>();
+        List<Long>       m_removedIds    = new ArrayList<>();
+        long             m_maxTrackId;
+        long             m_maxDateModified;
+        long             m_maxDateModifiedTrackId;
+
+        /**
+         * Moves the watermark past the given row if it is later.
+         */
+        void advance(long trackId, long dateModified)
+        {
+            m_maxTrackId = Math.max(m_maxTrackId, trackId);
+            if (dateModified > m_maxDateModified || (dateModified == m_maxDateModified && trackId > m_maxDateModifiedTrackId))
+            {
+                m_maxDateModified        = dateModified;
+                m_maxDateModifiedTrackId = trackId;
+            }
+        }
+    }
+
+    /**
+     * Async task that queries the MediaStore for tracks that were inserted,
+     * modified or removed since the last sync.
+     */
+    private class SyncTask extends AsyncTask<Void, Void, Delta>
+    {
+        private long m_fromTrackId;
+        private long m_fromDateModified;
+        private long m_fromDateModifiedTrackId;
+
+        /**
+         * Constructor
+         *
+         * @param fromTrackId             Largest track ID seen by the last sync
+         * @param fromDateModified        Latest modification time seen by the
+         *                                last sync
+         * @param fromDateModifiedTrackId Largest ID of the tracks modified at
+         *                                `fromDateModified`
+         */
+        SyncTask(long fromTrackId, long fromDateModified, long fromDateModifiedTrackId)
+        {
+            m_fromTrackId             = fromTrackId;
+            m_fromDateModified        = fromDateModified;
+            m_fromDateModifiedTrackId = fromDateModifiedTrackId;
+        }
+
+        @Override
+        protected Delta doInBackground(Void... params)
+        {
+            Delta delta = new Delta();
+            delta.m_maxTrackId             = m_fromTrackId;
+            delta.m_maxDateModified        = m_fromDateModified;
+            delta.m_maxDateModifiedTrackId = m_fromDateModifiedTrackId;
+
+            // The MediaStore only has second precision, so rows modified in
+            // the same second as the watermark are ordered by ID. Rows with
+            // a new ID are always fetched as a copied file can keep an old
+            // modification time.
+            String dateModified = MediaStore.Audio.Media.DATE_MODIFIED;
+            String id = MediaStore.Audio.Media._ID;
+            Cursor cursor = m_contentResolver.query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                AudioTrack.CursorReader.PROJECTION,
+                s_selection + " AND (" + dateModified + " > ? OR (" + dateModified + " = ? AND " + id + " > ?) OR " + id + " > ?)",
+                new String[] {
+                    Long.toString(m_fromDateModified),
+                    Long.toString(m_fromDateModified),
+                    Long.toString(m_fromDateModifiedTrackId),
+                    Long.toString(m_fromTrackId)
+                },
+                null
+            );
+            if (cursor == null) { return null; }
+
+            // Artwork may have been added or removed along with the tracks on
+            // an album, so albums with changed tracks are probed again and
+            // their cached artwork is dropped. The MediaStore also touches
+            // rows without changing them, which are skipped first.
+            int numInserted = 0;
+            AudioTrack.CursorReader reader = new AudioTrack.CursorReader(m_artworkIndex, cursor, m_stringPool);
+            while (cursor.moveToNext())
+            {
+                if (isCancelled()) { break; }
+
+                long trackId = reader.getId(cursor);
+                delta.advance(trackId, reader.getDateModified(cursor));
+
+                AudioTrack existing = m_tracksById.get(trackId);
+                if (existing != null && reader.matches(cursor, existing))
+                {
+                    continue;
+                }
+                if (existing == null)
+                {
+                    ++numInserted;
+                }
+
+                // Invalidated before the row is read so the track picks up
+                // the artwork state probed again for its album
+                long albumId = reader.getAlbumId(cursor);
+                m_artworkIndex.invalidate(albumId);
+                m_artworkDiskCache.invalidate(albumId);
+
+                AudioTrack track = reader.read(cursor);
+                delta.m_changedTracks.add(track);
+            }
+            cursor.close();
+            m_artworkIndex.save();
+
+            // Removed rows don't leave anything behind to query for. If the
+            // number of rows is what the known tracks and the insertions add
+            // up to then nothing was removed, otherwise the current set of
+            // IDs is compared against the known set.
+            int expectedCount = m_tracksById.size() + numInserted;
+            if (queryCount() == expectedCount || isCancelled())
+            {
+                return isCancelled() ? null : delta;
+            }
+
+            cursor = m_contentResolver.query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                s_idProjection,
+                s_selection,
+                null,
+                null
+            );
+            if (cursor == null) { return null; }
+
+            long[] currentIds = new long[cursor.getCount()];
+            int numIds = 0;
+            while (cursor.moveToNext() && numIds < currentIds.length)
+            {
+                currentIds[numIds++] = cursor.getLong(0);
+            }
+            cursor.close();
+
+            Arrays.sort(currentIds, 0, numIds);
+            for (long trackId : m_tracksById.keySet())
+            {
+                if (Arrays.binarySearch(currentIds, 0, numIds, trackId) < 0)
+                {
+                    delta.m_removedIds.add(trackId);
+                }
+            }
+
+            return isCancelled() ? null : delta;
+        }
+
+        /**
+         * Counts the music rows in the MediaStore without reading them.
+         *
+         * @return The number of rows, or -1 if they could not be counted
+         */
+        private int queryCount()
+        {
+            Cursor cursor;
+            try
+            {
+                cursor = m_contentResolver.query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    s_countProjection,
+                    s_selection,
+                    null,
+                    null
+                );
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // Newer providers reject aggregate projections
+                return -1;
+            }
+            if (cursor == null) { return -1; }
+
+            int count = cursor.moveToFirst() ? cursor.getInt(0) : -1;
+            cursor.close();
+            return count;
+        }
+
+        @Override
+        protected void onPostExecute(Delta delta)
+        {
+            m_syncTask = null;
+            if (delta != null)
+            {
+                applyDelta(delta);
+            }
+
+            if (m_syncPending)
+            {
+                m_syncPending = false;
+                sync();
+            }
+        }
+    }
+
+    /**
+     * Async task that rewrites the library snapshot after a sync.
+     */
+    private static class SnapshotWriteTask extends AsyncTask<Void, Void, Void>
+    {
+        private LibrarySnapshot  m_snapshot;
+        private List<AudioTrack> m_tracks;
+
+        SnapshotWriteTask(LibrarySnapshot snapshot, List<AudioTrack> tracks)
+        {
+            m_snapshot = snapshot;
+            m_tracks   = tracks;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params)
+        {
+            m_snapshot.write(m_tracks);
+            return null;
+        }
+    }
+
+    /**
+     * Notified on the UI thread each time changes have been applied to the
+     * playlist. A changed track is reported as the removal of its old version
+     * and the addition of its new one.
+     */
+    public interface OnLibraryChangedListener
+    {
+        void onLibraryChanged(List<AudioTrack> removedTracks, List<AudioTrack> addedTracks);
+    }
+}
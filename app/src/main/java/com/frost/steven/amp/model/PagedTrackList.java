@@ -0,0 +1,447 @@
+package com.frost.steven.amp.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.support.annotation.Nullable;
+
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.utils.StringPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A list of tracks that is read from the MediaStore a page at a time as it is
+ * scrolled. Only the track IDs are read up front, which gives the number of
+ * tracks straight away, and the first page is read along with them so the
+ * list can be drawn without waiting for anything else.
+ *
+ * Every other page is read in the background the first time a row on it, or
+ * near it, is needed. Pages that are far from the rows on screen are dropped,
+ * each with its own track store and string pool, so memory use depends on the
+ * size of the screen rather than the size of the list.
+ *
+ * Lists are only used on the UI thread. Tracks must be read with `getTrack`,
+ * which returns null for rows on a page that has not been read yet.
+ */
+public class PagedTrackList
+{
+    public static final int PAGE_SIZE = 64;
+
+    private static final int LOAD_MARGIN  = 1; // Pages read either side of the visible rows
+    private static final int EVICT_MARGIN = 3; // Pages kept either side of the visible rows
+
+    private static final String   s_extVolume    = "external";
+    private static final String   s_selection    = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+    private static final String[] s_idProjection = { MediaStore.Audio.Media._ID };
+
+    private ContentResolver m_contentResolver;
+    private ArtworkIndex    m_artworkIndex;
+    private Uri             m_contentUri;
+    private String          m_selection;
+    private String          m_orderBy;
+
+    private List<Listener> m_listeners;
+
+    private long[]     m_ids;
+    private Page[]     m_pages;
+    private PageTask[] m_pageTasks;
+    private IdsTask    m_idsTask;
+
+    /**
+     * Constructor
+     *
+     * @param context    context used to access the MediaStore
+     * @param selection  selection criteria such as ''MediaStore.Audio.Media.ARTIST' == 'Coldplay''
+     * @param orderBy    ordering criteria such as ''MediaStore.Audio.Media.ARTIST' ASC'
+     * @param playlistId the ID of the MediaStore playlist to list the tracks
+     *                   of, or null to list tracks from the whole library
+     */
+    public PagedTrackList(Context context, @Nullable String[] selection, @Nullable String orderBy, @Nullable Long playlistId)
+    {
+        m_contentResolver = context.getContentResolver();
+        m_artworkIndex    = ArtworkIndex.getInstance(context);
+        m_orderBy         = orderBy;
+        m_listeners       = new ArrayList<>();
+
+        m_contentUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        if (playlistId != null)
+        {
+            m_contentUri = MediaStore.Audio.Playlists.Members.getContentUri(s_extVolume, playlistId);
+        }
+
+        m_selection = s_selection;
+        if (selection != null)
+        {
+            for (String cond : selection)
+            {
+                m_selection += " AND " + cond;
+            }
+        }
+
+        m_ids       = new long[0];
+        m_pages     = new Page[0];
+        m_pageTasks = new PageTask[0];
+    }
+
+    /**
+     * Reads the track IDs and the first page in the background.
+     */
+    public void load()
+    {
+        startIdsTask(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Reads the track IDs and the first page again, for example after a track
+     * has been removed from the playlist. The read is queued on the serial
+     * executor, so it runs after any edit started by `DBPlaylist`.
+     */
+    public void reload()
+    {
+        startIdsTask(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * Gets the number of tracks in the list. This is zero until the track IDs
+     * have been read.
+     *
+     * @return the number of tracks
+     */
+    public int getNumTracks()
+    {
+        return m_ids.length;
+    }
+
+    /**
+     * Gets the ID of the track at the given position. IDs are read up front,
+     * so this is available even when the page holding the track is not.
+     *
+     * @param position the position of the track
+     *
+     * @return the MediaStore ID of the track
+     */
+    public long getTrackId(int position)
+    {
+        return m_ids[position];
+    }
+
+    /**
+     * Gets the track at the given position. If the page holding the track has
+     * not been read yet, it is read in the background and listeners are
+     * notified once it is available.
+     *
+     * @param position the position of the track
+     *
+     * @return the track, or null if its page has not been read yet
+     */
+    @Nullable
+    public AudioTrack getTrack(int position)
+    {
+        int pageIdx = position / PAGE_SIZE;
+        Page page = m_pages[pageIdx];
+        if (page == null)
+        {
+            requestPage(pageIdx);
+            return null;
+        }
+        return page.m_tracks[position - page.m_start];
+    }
+
+    /**
+     * Tells the list which rows are on screen. Pages around them are read
+     * ahead of the rows being bound, and pages far from them are dropped.
+     *
+     * @param first the position of the first visible row
+     * @param last  the position of the last visible row
+     */
+    public void setVisibleRange(int first, int last)
+    {
+        if (m_pages.length == 0 || first < 0 || last < first)
+        {
+            return;
+        }
+
+        int firstPage = first / PAGE_SIZE;
+        int lastPage  = Math.min(last / PAGE_SIZE, m_pages.length - 1);
+
+        for (int i = 0; i < m_pages.length; ++i)
+        {
+            if (i < firstPage - EVICT_MARGIN || i > lastPage + EVICT_MARGIN)
+            {
+                m_pages[i] = null;
+                if (m_pageTasks[i] != null)
+                {
+                    m_pageTasks[i].cancel(false);
+                    m_pageTasks[i] = null;
+                }
+            }
+        }
+
+        int from = Math.max(0, firstPage - LOAD_MARGIN);
+        int to   = Math.min(m_pages.length - 1, lastPage + LOAD_MARGIN);
+        for (int i = from; i <= to; ++i)
+        {
+            if (m_pages[i] == null)
+            {
+                requestPage(i);
+            }
+        }
+    }
+
+    public void addListener(Listener listener)
+    {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener)
+    {
+        m_listeners.remove(listener);
+    }
+
+    private void startIdsTask(Executor executor)
+    {
+        if (m_idsTask != null)
+        {
+            m_idsTask.cancel(false);
+        }
+
+        m_idsTask = new IdsTask();
+        m_idsTask.executeOnExecutor(executor);
+    }
+
+    private void requestPage(int pageIdx)
+    {
+        if (m_pageTasks[pageIdx] != null)
+        {
+            return;
+        }
+
+        int start = pageIdx * PAGE_SIZE;
+        int end = Math.min(start + PAGE_SIZE, m_ids.length);
+        PageTask task = new PageTask(pageIdx, start, Arrays.copyOfRange(m_ids, start, end));
+        m_pageTasks[pageIdx] = task;
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Reads the ordered track IDs. This does I/O and must not be called from
+     * the UI thread.
+     *
+     * @return the track IDs, or null if the query failed
+     */
+    private long[] queryIds()
+    {
+        Cursor cursor = m_contentResolver.query(m_contentUri, s_idProjection, m_selection, null, m_orderBy);
+        if (cursor == null) { return null; }
+
+        long[] ids = new long[cursor.getCount()];
+        int numIds = 0;
+        while (numIds < ids.length && cursor.moveToNext())
+        {
+            ids[numIds++] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        return numIds == ids.length ? ids : Arrays.copyOf(ids, numIds);
+    }
+
+    /**
+     * Reads the tracks with the given IDs. Each page has its own string pool,
+     * so its text is released along with it. This does I/O and must not be
+     * called from the UI thread.
+     *
+     * @param start the position of the first track on the page
+     * @param ids   the IDs of the tracks on the page, in order
+     *
+     * @return the page, or null if the query failed
+     */
+    private Page queryPage(int start, long[] ids)
+    {
+        StringBuilder selection = new StringBuilder("(").append(m_selection).append(") AND ");
+        selection.append(MediaStore.Audio.Media._ID).append(" IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i)
+        {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = Long.toString(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = m_contentResolver.query(
+            m_contentUri,
+            AudioTrack.CursorReader.PROJECTION,
+            selection.toString(),
+            selectionArgs,
+            null
+        );
+        if (cursor == null) { return null; }
+
+        Map<Long, Integer> offsets = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; ++i)
+        {
+            offsets.put(ids[i], i);
+        }
+
+        // Rows come back in any order and rows deleted since the IDs were
+        // read are missing, in which case their slot is left empty
+        AudioTrack[] tracks = new AudioTrack[ids.length];
+        try
+        {
+            AudioTrack.CursorReader reader = new AudioTrack.CursorReader(m_artworkIndex, cursor, new StringPool());
+            while (cursor.moveToNext())
+            {
+                Integer offset = offsets.get(reader.getId(cursor));
+                if (offset != null)
+                {
+                    tracks[offset] = reader.read(cursor);
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return new Page(start, tracks);
+    }
+
+    /**
+     * A contiguous run of tracks starting at a multiple of `PAGE_SIZE`.
+     */
+    private static class Page
+    {
+        final int          m_start;
+        final AudioTrack[] m_tracks;
+
+        Page(int start, AudioTrack[] tracks)
+        {
+            m_start  = start;
+            m_tracks = tracks;
+        }
+    }
+
+    /**
+     * Async task that reads the track IDs along with the first page.
+     */
+    private class IdsTask extends AsyncTask<Void, Void, Page>
+    {
+        private long[] m_newIds;
+
+        @Override
+        protected Page doInBackground(Void... params)
+        {
+            m_newIds = queryIds();
+            if (m_newIds == null || m_newIds.length == 0 || isCancelled())
+            {
+                return null;
+            }
+            return queryPage(0, Arrays.copyOf(m_newIds, Math.min(PAGE_SIZE, m_newIds.length)));
+        }
+
+        @Override
+        protected void onPostExecute(Page firstPage)
+        {
+            m_idsTask = null;
+            if (m_newIds == null)
+            {
+                return;
+            }
+
+            for (PageTask task : m_pageTasks)
+            {
+                if (task != null)
+                {
+                    task.cancel(false);
+                }
+            }
+
+            int numPages = (m_newIds.length + PAGE_SIZE - 1) / PAGE_SIZE;
+            m_ids       = m_newIds;
+            m_pages     = new Page[numPages];
+            m_pageTasks = new PageTask[numPages];
+            if (firstPage != null)
+            {
+                m_pages[0] = firstPage;
+            }
+
+            for (Listener listener : m_listeners)
+            {
+                listener.onTrackListReset();
+            }
+        }
+    }
+
+    /**
+     * Async task that reads a single page.
+     */
+    private class PageTask extends AsyncTask<Void, Void, Page>
+    {
+        private final int    m_pageIdx;
+        private final int    m_start;
+        private final long[] m_pageIds;
+
+        PageTask(int pageIdx, int start, long[] pageIds)
+        {
+            m_pageIdx = pageIdx;
+            m_start   = start;
+            m_pageIds = pageIds;
+        }
+
+        @Override
+        protected Page doInBackground(Void... params)
+        {
+            return queryPage(m_start, m_pageIds);
+        }
+
+        @Override
+        protected void onPostExecute(Page page)
+        {
+            // The list may have been read again, or the page dropped, while
+            // this was running
+            if (m_pageIdx >= m_pageTasks.length || m_pageTasks[m_pageIdx] != this)
+            {
+                return;
+            }
+
+            m_pageTasks[m_pageIdx] = null;
+            if (page == null)
+            {
+                return;
+            }
+
+            m_pages[m_pageIdx] = page;
+            for (Listener listener : m_listeners)
+            {
+                listener.onPageLoaded(m_start, m_pageIds.length);
+            }
+        }
+    }
+
+    /**
+     * Notified on the UI thread when the contents of the list change.
+     */
+    public interface Listener
+    {
+        /**
+         * Called once the track IDs have been read, and again each time they
+         * are read again. Every position may have changed.
+         */
+        void onTrackListReset();
+
+        /**
+         * Called when a page has been read and its tracks can be bound.
+         *
+         * @param positionStart the position of the first track on the page
+         * @param itemCount     the number of tracks on the page
+         */
+        void onPageLoaded(int positionStart, int itemCount);
+    }
+}
@@ -0,0 +1,409 @@
+package com.frost.steven.amp.model;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.utils.StringPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the MediaStore audio table in parallel. The rows matching the
+ * selection are split into `_ID` ranges holding roughly the same number of
+ * rows, and each range is queried and turned into tracks on its own thread.
+ * The final order comes from a query that only reads the `_ID` column in the
+ * requested order, which is cheap compared to materializing the rows. Each
+ * time a partition completes, the rows of every completed partition are
+ * merged back into that order and handed to the listener, so a caller can
+ * show tracks before the whole table has been read.
+ *
+ * Each partition interns its text in its own string pool so the threads don't
+ * contend on a single lock, and the text is moved into the pool of the scan
+ * on the calling thread as each partition completes.
+ *
+ * This only applies to the audio table itself. Playlist member tables are
+ * small and keyed differently, so they are always read sequentially.
+ */
+class PartitionedScan
+{
+    private static final int MIN_PARTITION_SIZE = 500;
+    private static final int MAX_THREADS        = Runtime.getRuntime().availableProcessors();
+
+    private static final String[] s_idProjection   = { MediaStore.Audio.Media._ID };
+    private static final String   s_rangeSelection = MediaStore.Audio.Media._ID + " BETWEEN ? AND ?";
+    private static final String   s_rangeOrderBy   = MediaStore.Audio.Media._ID + " ASC";
+
+    private static ThreadPoolExecutor s_executor;
+
+    private ContentResolver    m_contentResolver;
+    private ArtworkIndex       m_artworkIndex;
+    private StringPool         m_stringPool;
+    private String             m_selection;
+    private String             m_orderBy;
+    private int                m_parallelism;
+    private AsyncTask<?, ?, ?> m_owner;
+    private Listener           m_listener;
+
+    private int  m_numPartitions;
+    private long m_maxTrackId;
+    private long m_maxDateModified;
+    private long m_maxDateModifiedTrackId;
+    private long m_storeSize;
+    private long m_stringBytesSaved;
+
+    /**
+     * Constructor
+     *
+     * @param contentResolver Application content resolver
+     * @param artworkIndex    Index used to look up album artwork
+     * @param stringPool      The pool of the scan that the text of the
+     *                        tracks is moved into
+     * @param selection       Selection criteria for the audio table
+     * @param orderBy         Order of the resulting tracks
+     * @param parallelism     Maximum number of partitions to read at once
+     * @param owner           The task running the scan, checked for
+     *                        cancellation by every partition
+     * @param listener        Notified as each partition completes
+     */
+    PartitionedScan(ContentResolver contentResolver, ArtworkIndex artworkIndex, StringPool stringPool, String selection, String orderBy, int parallelism, AsyncTask<?, ?, ?> owner, Listener listener)
+    {
+        m_contentResolver = contentResolver;
+        m_artworkIndex    = artworkIndex;
+        m_stringPool      = stringPool;
+        m_selection       = selection;
+        m_orderBy         = orderBy;
+        m_parallelism     = Math.max(1, Math.min(parallelism, MAX_THREADS));
+        m_owner           = owner;
+        m_listener        = listener;
+    }
+
+    /**
+     * Runs the scan, blocking until every partition has been read.
+     *
+     * @return The tracks in the requested order, or null if the scan was
+     *         cancelled or could not be completed.
+     */
+    List<AudioTrack> run()
+    {
+        long[] orderedIds = queryOrderedIds();
+        if (orderedIds == null || m_owner.isCancelled())
+        {
+            return null;
+        }
+
+        int numIds = orderedIds.length;
+        if (numIds == 0)
+        {
+            return new ArrayList<>();
+        }
+
+        // Split the sorted IDs into ranges with the same number of rows
+        long[] sortedIds = Arrays.copyOf(orderedIds, numIds);
+        Arrays.sort(sortedIds);
+
+        m_numPartitions = Math.max(1, Math.min(m_parallelism, numIds / MIN_PARTITION_SIZE));
+        long[] upperBounds = new long[m_numPartitions];
+
+        CompletionService<Partition> service = new ExecutorCompletionService<>(getExecutor());
+        List<Future<Partition>> futures = new ArrayList<>(m_numPartitions);
+        for (int i = 0; i < m_numPartitions; ++i)
+        {
+            long lower = sortedIds[(int)((long)i * numIds / m_numPartitions)];
+            long upper = sortedIds[(int)((long)(i + 1) * numIds / m_numPartitions) - 1];
+            upperBounds[i] = upper;
+            futures.add(service.submit(new Partition(i, lower, upper)));
+        }
+
+        Partition[] partitions = new Partition[m_numPartitions];
+        List<AudioTrack> tracks = null;
+        long initialBytesSaved = m_stringPool.getBytesSaved();
+        try
+        {
+            for (int i = 0; i < m_numPartitions; ++i)
+            {
+                Partition partition = service.take().get();
+                if (m_owner.isCancelled())
+                {
+                    cancelAll(futures);
+                    return null;
+                }
+
+                partition.m_store.moveToPool(m_stringPool);
+                partitions[partition.m_index] = partition;
+                m_storeSize        += partition.m_storeSize;
+                m_stringBytesSaved += partition.m_stringBytesSaved;
+
+                tracks = merge(orderedIds, upperBounds, partitions);
+                m_listener.onPartitionScanned(partition.m_index, m_numPartitions, tracks);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            cancelAll(futures);
+            return null;
+        }
+        catch (ExecutionException ex)
+        {
+            Log.e(PartitionedScan.class.getName(), "Partition scan failed.", ex.getCause());
+            cancelAll(futures);
+            return null;
+        }
+
+        // Strings found in more than one partition are only kept once
+        m_stringBytesSaved += m_stringPool.getBytesSaved() - initialBytesSaved;
+        return tracks;
+    }
+
+    /**
+     * Merges the rows of every completed partition into the requested order.
+     * The sync watermarks are taken from the merged rows, so they are only
+     * final once every partition has completed.
+     *
+     * Rows can be inserted or removed between the ID query and the partition
+     * queries. Only rows seen by both are kept, so a row added in the
+     * meantime is left for the next sync to pick up.
+     *
+     * @param orderedIds  Every ID in the requested order
+     * @param upperBounds The largest ID of each partition
+     * @param partitions  The partitions, null until they complete
+     *
+     * @return A new list with the merged tracks
+     */
+    private List<AudioTrack> merge(long[] orderedIds, long[] upperBounds, Partition[] partitions)
+    {
+        m_maxTrackId             = 0;
+        m_maxDateModified        = 0;
+        m_maxDateModifiedTrackId = 0;
+
+        List<AudioTrack> tracks = new ArrayList<>(orderedIds.length);
+        for (long id : orderedIds)
+        {
+            int partitionIdx = Arrays.binarySearch(upperBounds, id);
+            if (partitionIdx < 0)
+            {
+                partitionIdx = -partitionIdx - 1;
+            }
+
+            Partition partition = partitions[partitionIdx];
+            if (partition == null) { continue; }
+
+            int row = Arrays.binarySearch(partition.m_ids, 0, partition.m_size, id);
+            if (row >= 0)
+            {
+                tracks.add(partition.m_tracks[row]);
+                m_maxTrackId = Math.max(m_maxTrackId, id);
+
+                long dateModified = partition.m_dateModified[row];
+                if (dateModified > m_maxDateModified || (dateModified == m_maxDateModified && id > m_maxDateModifiedTrackId))
+                {
+                    m_maxDateModified        = dateModified;
+                    m_maxDateModifiedTrackId = id;
+                }
+            }
+        }
+        return tracks;
+    }
+
+    int getNumPartitions()
+    {
+        return m_numPartitions;
+    }
+
+    long getMaxTrackId()
+    {
+        return m_maxTrackId;
+    }
+
+    long getMaxDateModified()
+    {
+        return m_maxDateModified;
+    }
+
+    long getMaxDateModifiedTrackId()
+    {
+        return m_maxDateModifiedTrackId;
+    }
+
+    long getStoreSize()
+    {
+        return m_storeSize;
+    }
+
+    long getStringBytesSaved()
+    {
+        return m_stringBytesSaved;
+    }
+
+    /**
+     * Reads the IDs of every matching row in the requested order.
+     *
+     * @return The ordered IDs, or null if the query failed.
+     */
+    private long[] queryOrderedIds()
+    {
+        Cursor cursor = m_contentResolver.query(
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+            s_idProjection,
+            m_selection,
+            null,
+            m_orderBy
+        );
+        if (cursor == null) { return null; }
+
+        long[] ids = new long[cursor.getCount()];
+        int numIds = 0;
+        while (numIds < ids.length && cursor.moveToNext())
+        {
+            ids[numIds++] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        return numIds == ids.length ? ids : Arrays.copyOf(ids, numIds);
+    }
+
+    private static void cancelAll(List<Future<Partition>> futures)
+    {
+        for (Future<Partition> future : futures)
+        {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Gets the pool that partitions are read on. The pool is bounded by the
+     * number of cores and its threads exit when idle.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor()
+    {
+        if (s_executor == null)
+        {
+            s_executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private final AtomicInteger m_count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        return new Thread(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "PartitionedScan #" + m_count.incrementAndGet());
+                    }
+                }
+            );
+            s_executor.allowCoreThreadTimeOut(true);
+        }
+        return s_executor;
+    }
+
+    /**
+     * Reads the rows in a single `_ID` range, ordered by ID so they can be
+     * found by binary search when the partitions are merged.
+     */
+    private class Partition implements Callable<Partition>
+    {
+        final int  m_index;
+        final long m_lower;
+        final long m_upper;
+
+        long[]       m_ids;
+        long[]       m_dateModified;
+        AudioTrack[] m_tracks;
+        TrackStore   m_store;
+        int          m_size;
+        long         m_storeSize;
+        long         m_stringBytesSaved;
+
+        Partition(int index, long lower, long upper)
+        {
+            m_index = index;
+            m_lower = lower;
+            m_upper = upper;
+        }
+
+        @Override
+        public Partition call()
+        {
+            Cursor cursor = m_contentResolver.query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                AudioTrack.CursorReader.PROJECTION,
+                "(" + m_selection + ") AND " + s_rangeSelection,
+                new String[] { Long.toString(m_lower), Long.toString(m_upper) },
+                s_rangeOrderBy
+            );
+            if (cursor == null)
+            {
+                throw new IllegalStateException("Unable to query partition " + m_index + ".");
+            }
+
+            try
+            {
+                int count = cursor.getCount();
+                m_ids          = new long[count];
+                m_dateModified = new long[count];
+                m_tracks       = new AudioTrack[count];
+
+                AudioTrack.CursorReader reader = new AudioTrack.CursorReader(m_artworkIndex, cursor, new StringPool());
+                while (m_size < count && cursor.moveToNext())
+                {
+                    if (m_owner.isCancelled() || Thread.currentThread().isInterrupted()) { break; }
+
+                    AudioTrack track = reader.read(cursor);
+                    m_ids[m_size]          = track.getId();
+                    m_dateModified[m_size] = reader.getDateModified(cursor);
+                    m_tracks[m_size]       = track;
+                    ++m_size;
+                }
+
+                m_store            = reader.getStore();
+                m_storeSize        = m_store.estimateSize();
+                m_stringBytesSaved = reader.getStringBytesSaved();
+            }
+            finally
+            {
+                cursor.close();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Notified on the scanning thread each time a partition completes.
+     */
+    interface Listener
+    {
+        /**
+         * @param partition     The index of the partition that completed
+         * @param numPartitions The total number of partitions
+         * @param tracks        The tracks of every completed partition, in
+         *                      the requested order. The list is not used by
+         *                      the scan again.
+         */
+        void onPartitionScanned(int partition, int numPartitions, List<AudioTrack> tracks);
+    }
+}
@@ -1,18 +1,26 @@
 package com.frost.steven.amp.model;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.annotation.Nullable;
 
+import com.frost.steven.amp.helpers.ArtworkIndex;
+import com.frost.steven.amp.helpers.LibrarySnapshot;
 import com.frost.steven.amp.utils.ListenableArrayList;
+import com.frost.steven.amp.utils.StringPool;
 
-import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 
 /**
@@ -24,6 +32,9 @@ import java.util.Random;
  * This class is different from DBPlaylist as it represents a 'resolved' set
  * of audio tracks that can be played by the media service rather than a
  * weak reference to a database row which still needs to be resolved further.
+ *
+ * Playlists are shared between the UI and the media service's player thread,
+ * so every method is synchronized.
  */
 public class Playlist
 {
@@ -51,11 +62,56 @@ public class Playlist
      *
      * @param track the track to add to the playlist
      */
-    public void addTrack(AudioTrack track)
+    public synchronized void addTrack(AudioTrack track)
     {
         m_originalTracks.add(track);
     }
 
+    /**
+     * Appends the given tracks to the playlist
+     *
+     * @param tracks the tracks to add to the playlist
+     */
+    public synchronized void addTracks(Collection<AudioTrack> tracks)
+    {
+        m_originalTracks.addAll(tracks);
+    }
+
+    /**
+     * Replaces every track in the playlist with the given tracks. The cursor
+     * follows the current track if it is still present in the new list and
+     * the shuffled order is rebuilt if shuffle is enabled.
+     *
+     * @param tracks the new contents of the playlist
+     */
+    public synchronized void replaceTracks(List<AudioTrack> tracks)
+    {
+        Long currentId = null;
+        if (m_cursor < getNumTracks())
+        {
+            currentId = getCurrentTrack().getId();
+        }
+
+        m_originalTracks.clear();
+        m_originalTracks.addAll(tracks);
+        m_shuffledTracks.clear();
+
+        m_cursor = 0;
+        for (int i = 0; currentId != null && i < m_originalTracks.size(); ++i)
+        {
+            if (m_originalTracks.get(i).getId() == currentId)
+            {
+                m_cursor = i;
+                break;
+            }
+        }
+
+        if (m_shuffle && !m_originalTracks.isEmpty())
+        {
+            setShuffle(true);
+        }
+    }
+
     /**
      * Shuffles the current playlist or restores the original playlist,
      * depending on the truth of the boolean passed.
@@ -63,7 +119,7 @@ public class Playlist
      * @param shuffle true if the playlist should be shuffled, false if the
      *                original should be restored.
      */
-    public void setShuffle(boolean shuffle)
+    public synchronized void setShuffle(boolean shuffle)
     {
         if (shuffle)
         {
@@ -120,7 +176,7 @@ public class Playlist
      *
      * @param repeat true if the playlist should repeat, false otherwise.
      */
-    public void setRepeat(boolean repeat)
+    public synchronized void setRepeat(boolean repeat)
     {
         m_repeat = repeat;
     }
@@ -131,7 +187,7 @@ public class Playlist
      *
      * @return the new track after moving the cursor.
      */
-    public AudioTrack moveToPreviousTrack()
+    public synchronized AudioTrack moveToPreviousTrack()
     {
         if (m_cursor == 0 && m_repeat)
         {
@@ -149,7 +205,7 @@ public class Playlist
      *
      * @param cursor the position to move the cursor to.
      */
-    public void setCursor(int cursor)
+    public synchronized void setCursor(int cursor)
     {
         m_cursor = cursor;
     }
@@ -160,7 +216,7 @@ public class Playlist
      *
      * @return the audio track at the current position.
      */
-    public AudioTrack getCurrentTrack()
+    public synchronized AudioTrack getCurrentTrack()
     {
         if (m_shuffle)
         {
@@ -175,7 +231,7 @@ public class Playlist
      *
      * @return the new track after moving the cursor.
      */
-    public AudioTrack moveToNextTrack()
+    public synchronized AudioTrack moveToNextTrack()
     {
         int end = getNumTracks() - 1;
         if (m_cursor == end && m_repeat)
@@ -189,12 +245,30 @@ public class Playlist
         return getCurrentTrack();
     }
 
+    /**
+     * Gets the track that `moveToNextTrack` would move to without moving the
+     * cursor.
+     *
+     * @return the next track, or null if there is no next track.
+     */
+    public synchronized AudioTrack peekNextTrack()
+    {
+        int numTracks = getNumTracks();
+        if (numTracks == 0 || !hasNextTrack())
+        {
+            return null;
+        }
+
+        int next = m_cursor == numTracks - 1 ? 0 : m_cursor + 1;
+        return m_shuffle ? m_shuffledTracks.get(next) : m_originalTracks.get(next);
+    }
+
     /**
      * Gets the number of tracks in the playlist.
      *
      * @return the number of tracks.
      */
-    public int getNumTracks()
+    public synchronized int getNumTracks()
     {
         return (m_shuffle ? m_shuffledTracks.size() : m_originalTracks.size());
     }
@@ -206,7 +280,7 @@ public class Playlist
      *
      * @return the audio track at the given position.
      */
-    public AudioTrack getUnshuffledTrack(int position)
+    public synchronized AudioTrack getUnshuffledTrack(int position)
     {
         return m_originalTracks.get(position);
     }
@@ -216,7 +290,7 @@ public class Playlist
      *
      * @return true if there is a track available to play next, false otherwise.
      */
-    public boolean hasNextTrack()
+    public synchronized boolean hasNextTrack()
     {
         return m_repeat || m_cursor < (getNumTracks() - 1);
     }
@@ -226,17 +300,17 @@ public class Playlist
      *
      * @return true if there is a track available to play, false otherwise.
      */
-    public boolean hasPreviousTrack()
+    public synchronized boolean hasPreviousTrack()
     {
         return m_repeat || m_cursor > 0;
     }
 
-    public boolean isRepeatEnabled()
+    public synchronized boolean isRepeatEnabled()
     {
         return m_repeat;
     }
 
-    public boolean isShuffleEnabled()
+    public synchronized boolean isShuffleEnabled()
     {
         return m_shuffle;
     }
@@ -246,16 +320,17 @@ public class Playlist
      *
      * @param position the index of the track to remove.
      */
-    public void removeTrack(int position)
+    public synchronized void removeTrack(int position)
     {
         AudioTrack track = m_originalTracks.get(position);
+        int removalPosition = position;
         if (m_shuffle)
         {
-            int removalPosition = 0;
+            removalPosition = 0;
             for (; removalPosition < m_shuffledTracks.size(); ++removalPosition)
             {
                 AudioTrack at = m_shuffledTracks.get(removalPosition);
-                if (at.ID == track.ID)
+                if (at.getId() == track.getId())
                 {
                     break;
                 }
@@ -263,6 +338,81 @@ public class Playlist
             m_shuffledTracks.remove(removalPosition);
         }
         m_originalTracks.remove(position);
+
+        // Keep the cursor on the same track if an earlier track was removed
+        if (removalPosition < m_cursor || (m_cursor > 0 && m_cursor >= getNumTracks()))
+        {
+            --m_cursor;
+        }
+    }
+
+    /**
+     * Inserts a track into the playlist at the given position. If shuffle is
+     * enabled the track is appended to the shuffled order.
+     *
+     * @param position the unshuffled position to insert the track at.
+     * @param track    the track to insert.
+     */
+    public synchronized void insertTrack(int position, AudioTrack track)
+    {
+        m_originalTracks.add(position, track);
+        if (m_shuffle)
+        {
+            m_shuffledTracks.add(track);
+        }
+        else if (position <= m_cursor && m_originalTracks.size() > 1)
+        {
+            ++m_cursor;
+        }
+    }
+
+    /**
+     * Replaces the track at the given position with an updated version of it,
+     * such as after the track metadata has been edited.
+     *
+     * @param position the unshuffled position of the track to replace.
+     * @param track    the replacement track.
+     */
+    public synchronized void setTrack(int position, AudioTrack track)
+    {
+        AudioTrack previous = m_originalTracks.set(position, track);
+        if (m_shuffle)
+        {
+            int shuffledPosition = m_shuffledTracks.indexOf(previous);
+            if (shuffledPosition >= 0)
+            {
+                m_shuffledTracks.set(shuffledPosition, track);
+            }
+        }
+    }
+
+    /**
+     * Finds the unshuffled position of the track with the given ID.
+     *
+     * @param trackId the ID of the track to find.
+     *
+     * @return the position of the track, or -1 if it is not in the playlist.
+     */
+    public synchronized int indexOfTrack(long trackId)
+    {
+        for (int i = 0; i < m_originalTracks.size(); ++i)
+        {
+            if (m_originalTracks.get(i).getId() == trackId)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets a copy of the tracks in the playlist in their unshuffled order.
+     *
+     * @return the list of tracks.
+     */
+    public synchronized List<AudioTrack> getUnshuffledTracks()
+    {
+        return new ArrayList<>(m_originalTracks);
     }
 
     /**
@@ -271,32 +421,42 @@ public class Playlist
      *
      * @param listener the listener to attach.
      */
-    public void attachPlaylistChangedListener(ListenableArrayList.OnCollectionChangedListener listener)
+    public synchronized void attachPlaylistChangedListener(ListenableArrayList.OnCollectionChangedListener listener)
     {
         m_originalTracks.attachListener(listener);
     }
 
+    /**
+     * Detaches a listener previously attached with
+     * `attachPlaylistChangedListener`.
+     *
+     * @param listener the listener to detach.
+     */
+    public synchronized void detachPlaylistChangedListener(ListenableArrayList.OnCollectionChangedListener listener)
+    {
+        m_originalTracks.detachListener(listener);
+    }
+
     /**
      * Asynchronous task that builds a playlist given some basic criteria. The
      * resulting playlist can be sent to the media service for playback.
      */
     public static class ListCreator extends AsyncTask<Void, AudioTrack, Void>
     {
-        private static final String   s_extVolume = "external";
-        private static final String   s_selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-        private static final String[] s_projection = {
-            MediaStore.Audio.Media._ID,
-            MediaStore.Audio.Media.ALBUM_ID,
-            MediaStore.Audio.Media.TITLE,
-            MediaStore.Audio.Media.ARTIST,
-            MediaStore.Audio.Media.ALBUM,
-            MediaStore.Audio.Media.DATA,
-            MediaStore.Audio.Media.DURATION
-        };
+        private static final String s_extVolume = "external";
+        private static final String s_selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+
+        private static final int  MIN_BATCH_SIZE    = 16;
+        private static final int  MAX_BATCH_SIZE    = 1024;
+        private static final long MAX_BATCH_LATENCY = 100; // ms
 
         private ContentResolver m_contentResolver;
+        private ArtworkIndex    m_artworkIndex;
+        private StringPool      m_stringPool;
 
+        private Handler                  m_handler;
         private List<ProgressListener>   m_progressListeners;
+        private List<PartitionListener>  m_partitionListeners;
         private List<CompletionListener> m_completionListeners;
 
         private Playlist m_playlist;
@@ -304,7 +464,16 @@ public class Playlist
         private String   m_orderBy;
 
         private Long     m_playlistId;
+        private int      m_parallelism;
         private boolean  m_complete;
+        private boolean  m_partitionsPublished;
+        private long     m_maxTrackId;
+        private long     m_maxDateModified;
+        private long     m_maxDateModifiedTrackId;
+
+        private LibrarySnapshot  m_snapshot;
+        private List<AudioTrack> m_reconciledTracks;
+        private Statistics       m_statistics;
 
         /**
          * Fills the given playlist with a selection of audio tracks based on
@@ -312,14 +481,14 @@ public class Playlist
          * creating a playlist containing all audio tracks or all tracks in a
          * specific album.
          *
-         * @param contentResolver   content resolver object
+         * @param context           context used to access the MediaStore
          * @param playlist          the playlist to populate
          * @param selection         selection criteria such as ''MediaStore.Audio.Media.ARTIST' == 'Coldplay''
          * @param orderBy           ordering criteria such as ''MediaStore.Audio.Media.ARTIST' ASC'
          */
-        public ListCreator(ContentResolver contentResolver, Playlist playlist, @Nullable String[] selection, @Nullable String orderBy)
+        public ListCreator(Context context, Playlist playlist, @Nullable String[] selection, @Nullable String orderBy)
         {
-            this(contentResolver, playlist, selection, orderBy, null);
+            this(context, playlist, selection, orderBy, null);
         }
 
         /**
@@ -329,23 +498,29 @@ public class Playlist
          * that given MediaStore playlist. Selection and ordering criteria will
          * then be applied after the initial cull.
          *
-         * @param contentResolver   content resolver object
+         * @param context           context used to access the MediaStore
          * @param playlist          the playlist to populate
          * @param selection         selection criteria such as ''MediaStore.Audio.Media.ARTIST' == 'Coldplay''
          * @param orderBy           ordering criteria such as ''MediaStore.Audio.Media.ARTIST' ASC'
          * @param playlistId        the ID of the MediaStore playlist to populate this playlist with
          */
-        public ListCreator(ContentResolver contentResolver, Playlist playlist, @Nullable String[] selection, @Nullable String orderBy, @Nullable Long playlistId)
+        public ListCreator(Context context, Playlist playlist, @Nullable String[] selection, @Nullable String orderBy, @Nullable Long playlistId)
         {
-            m_contentResolver = contentResolver;
+            m_contentResolver = context.getContentResolver();
+            m_artworkIndex    = ArtworkIndex.getInstance(context);
+            m_stringPool      = new StringPool();
 
+            m_handler             = new Handler(Looper.getMainLooper());
             m_progressListeners   = new ArrayList<>();
+            m_partitionListeners  = new ArrayList<>();
             m_completionListeners = new ArrayList<>();
 
             m_playlist   = playlist;
             m_orderBy    = orderBy;
-            m_playlistId = playlistId;
-            m_complete   = false;
+            m_playlistId  = playlistId;
+            m_parallelism = 1;
+            m_complete    = false;
+            m_statistics = new Statistics();
 
             m_selection = s_selection;
             if (selection != null)
@@ -357,8 +532,106 @@ public class Playlist
             }
         }
 
+        /**
+         * Attaches a snapshot to the task. The playlist is filled from the
+         * snapshot before the MediaStore is queried and the scan is then only
+         * used to reconcile any differences, after which the snapshot is
+         * rewritten. A snapshot must only be shared between tasks with the
+         * same selection and ordering criteria. This must be called before
+         * the task is executed.
+         *
+         * @param snapshot the snapshot to restore from and write to
+         */
+        public void setSnapshot(@Nullable LibrarySnapshot snapshot)
+        {
+            m_snapshot = snapshot;
+        }
+
+        /**
+         * Sets the number of threads used to read the MediaStore. With more
+         * than one thread the audio table is split into partitions that are
+         * read in parallel, which helps large libraries on devices with many
+         * cores. Without a restored snapshot, the playlist is replaced with
+         * the tracks of every completed partition, in order, each time a
+         * partition completes. This has no effect on MediaStore playlists and
+         * must be called before the task is executed.
+         *
+         * @param parallelism the maximum number of threads to use
+         */
+        public void setParallelism(int parallelism)
+        {
+            m_parallelism = parallelism;
+        }
+
+        @Override
+        protected void onPreExecute()
+        {
+            m_statistics.m_startTime = SystemClock.uptimeMillis();
+        }
+
         @Override
         protected Void doInBackground(Void... params)
+        {
+            List<AudioTrack> restoredTracks = null;
+            if (m_snapshot != null)
+            {
+                restoredTracks = m_snapshot.read(m_stringPool);
+                if (restoredTracks != null)
+                {
+                    publishProgress(restoredTracks.toArray(new AudioTrack[restoredTracks.size()]));
+                }
+            }
+
+            // Tracks restored from a snapshot are already visible, the scan
+            // results are applied once the scan is complete
+            boolean publish = restoredTracks == null;
+            boolean partitioned = m_parallelism > 1 && m_playlistId == null;
+            onScanStarted(publish && !partitioned);
+
+            List<AudioTrack> scannedTracks = null;
+            if (partitioned)
+            {
+                scannedTracks = scanPartitioned(publish);
+            }
+            if (scannedTracks == null && !isCancelled())
+            {
+                // Partitions that were already shown before the partitioned
+                // scan failed are replaced once the sequential scan is done
+                scannedTracks = scanSequential(publish && !m_partitionsPublished);
+                if (m_partitionsPublished)
+                {
+                    m_reconciledTracks = scannedTracks;
+                }
+            }
+            if (scannedTracks == null) { return null; }
+
+            onScanCompleted();
+            m_artworkIndex.save();
+
+            if (m_snapshot != null && !isCancelled())
+            {
+                boolean changed = restoredTracks == null || !isSameTrackList(restoredTracks, scannedTracks);
+                if (changed)
+                {
+                    if (restoredTracks != null)
+                    {
+                        m_reconciledTracks = scannedTracks;
+                    }
+                    m_snapshot.write(scannedTracks);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads every track on a single cursor, delivering tracks to the
+         * playlist as they are read.
+         *
+         * @param publish whether to publish tracks to the playlist
+         *
+         * @return the scanned tracks, or null if the query failed
+         */
+        private List<AudioTrack> scanSequential(boolean publish)
         {
             // The content URI is different depending on whether we're dealing
             // with MediaStore playlists or a playlist created from the whole
@@ -372,70 +645,259 @@ public class Playlist
 
             Cursor cursor = m_contentResolver.query(
                 contentUri,
-                s_projection,
+                AudioTrack.CursorReader.PROJECTION,
                 m_selection,
                 null,
                 m_orderBy
             );
             if (cursor == null) { return null; }
 
-            // Common column indices
-            final int idIdx       = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
-            final int albumIdIdx  = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-            final int titleIdx    = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
-            final int artistIdx   = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-            final int albumIdx    = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
-            final int dataIdx     = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
-            final int durationIdx = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            List<AudioTrack> scannedTracks = new ArrayList<>(cursor.getCount());
+            BatchPublisher publisher = new BatchPublisher(scannedTracks);
 
+            AudioTrack.CursorReader reader = new AudioTrack.CursorReader(m_artworkIndex, cursor, m_stringPool);
             while (cursor.moveToNext())
             {
                 if (isCancelled()) { break; }
 
-                long id       = cursor.getLong(idIdx);
-                long albumId  = cursor.getLong(albumIdIdx);
-                String title  = cursor.getString(titleIdx);
-                String artist = cursor.getString(artistIdx);
-                String album  = cursor.getString(albumIdx);
-                String data   = cursor.getString(dataIdx);
-                int duration  = cursor.getInt(durationIdx);
+                AudioTrack track = reader.read(cursor);
+                advanceWatermark(track.getId(), reader.getDateModified(cursor));
+                scannedTracks.add(track);
+                onTrackScanned(track);
+
+                if (publish)
+                {
+                    publisher.onTrackAdded();
+                }
+            }
+            cursor.close();
+
+            if (publish)
+            {
+                publisher.flush();
+            }
 
-                Uri artworkUri = Uri.parse("content://media/external/audio/albumart");
-                Uri albumArtworkUri = ContentUris.withAppendedId(artworkUri, albumId);
+            m_statistics.m_storeSize        = reader.getStore().estimateSize();
+            m_statistics.m_stringBytesSaved = reader.getStringBytesSaved();
+            return scannedTracks;
+        }
 
-                try
+        /**
+         * Reads every track using a partitioned scan. Partition listeners are
+         * notified on the UI thread as each partition completes.
+         *
+         * @param publish whether to replace the playlist with the tracks of
+         *                every completed partition as each one completes
+         *
+         * @return the scanned tracks, or null if the scan did not complete
+         */
+        private List<AudioTrack> scanPartitioned(final boolean publish)
+        {
+            PartitionedScan scan = new PartitionedScan(
+                m_contentResolver,
+                m_artworkIndex,
+                m_stringPool,
+                m_selection,
+                m_orderBy,
+                m_parallelism,
+                this,
+                new PartitionedScan.Listener()
                 {
-                    // Attempt to read the album art. We don't care about accessing
-                    // the contents of the file yet, it's just useful to know if it
-                    // exists in advance
-                    m_contentResolver.openFileDescriptor(albumArtworkUri, "r");
+                    @Override
+                    public void onPartitionScanned(final int partition, final int numPartitions, final List<AudioTrack> tracks)
+                    {
+                        m_handler.post(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                onPartitionScanned(partition, numPartitions, publish ? tracks : null);
+                            }
+                        });
+                        m_partitionsPublished = publish;
+                    }
                 }
-                catch (FileNotFoundException ex)
+            );
+
+            List<AudioTrack> scannedTracks = scan.run();
+            if (scannedTracks == null) { return null; }
+
+            m_maxTrackId             = scan.getMaxTrackId();
+            m_maxDateModified        = scan.getMaxDateModified();
+            m_maxDateModifiedTrackId = scan.getMaxDateModifiedTrackId();
+
+            for (AudioTrack track : scannedTracks)
+            {
+                if (isCancelled()) { break; }
+
+                onTrackScanned(track);
+            }
+
+            m_statistics.m_numPartitions    = scan.getNumPartitions();
+            m_statistics.m_storeSize        = scan.getStoreSize();
+            m_statistics.m_stringBytesSaved = scan.getStringBytesSaved();
+            return scannedTracks;
+        }
+
+        /**
+         * Applies a completed partition on the UI thread.
+         *
+         * @param partition     the index of the partition that completed
+         * @param numPartitions the total number of partitions
+         * @param tracks        the tracks of every completed partition to
+         *                      replace the playlist with, or null to leave
+         *                      the playlist as it is
+         */
+        private void onPartitionScanned(int partition, int numPartitions, @Nullable List<AudioTrack> tracks)
+        {
+            if (isCancelled()) { return; }
+
+            if (tracks != null)
+            {
+                int numAdded = tracks.size() - m_playlist.getNumTracks();
+                m_playlist.replaceTracks(tracks);
+                m_statistics.addBatch(numAdded);
+            }
+
+            for (PartitionListener listener : m_partitionListeners)
+            {
+                listener.onPartitionScanned(partition, numPartitions, tracks != null);
+            }
+        }
+
+        /**
+         * Moves the sync watermarks past the given row if it is later.
+         *
+         * @param trackId      the ID of the row
+         * @param dateModified the modification time of the row
+         */
+        private void advanceWatermark(long trackId, long dateModified)
+        {
+            m_maxTrackId = Math.max(m_maxTrackId, trackId);
+            if (dateModified > m_maxDateModified || (dateModified == m_maxDateModified && trackId > m_maxDateModifiedTrackId))
+            {
+                m_maxDateModified        = dateModified;
+                m_maxDateModifiedTrackId = trackId;
+            }
+        }
+
+        /**
+         * Called on the background thread just before the MediaStore is
+         * queried for tracks, after any snapshot has been restored.
+         * Subclasses can override this to load other parts of the library
+         * within the same task.
+         *
+         * @param publishing whether scanned tracks are published to the
+         *                   playlist as they are read, rather than replacing
+         *                   the restored tracks once the scan is complete
+         */
+        protected void onScanStarted(boolean publishing) {}
+
+        /**
+         * Called on the background thread for every track read from the
+         * MediaStore, including when the playlist was restored from a
+         * snapshot. Subclasses can override this to build other views of the
+         * library in the same pass.
+         *
+         * @param track the track that was read
+         */
+        protected void onTrackScanned(AudioTrack track) {}
+
+        /**
+         * Called on the background thread once every track has been read
+         * from the MediaStore. This is not called if the query failed.
+         */
+        protected void onScanCompleted() {}
+
+        /**
+         * Delivers scanned tracks to the UI thread in batches. The first
+         * batch is small so the list can be drawn as soon as possible and the
+         * batch size then grows to keep the number of messages posted to the
+         * UI thread low. A batch is also flushed if it has been held for too
+         * long, which keeps slow scans visibly progressing.
+         */
+        private class BatchPublisher
+        {
+            private List<AudioTrack> m_tracks;
+            private int              m_batchSize;
+            private int              m_batchStart;
+            private long             m_batchStartTime;
+
+            /**
+             * @param tracks the list that scanned tracks are appended to
+             */
+            BatchPublisher(List<AudioTrack> tracks)
+            {
+                m_tracks         = tracks;
+                m_batchSize      = MIN_BATCH_SIZE;
+                m_batchStartTime = SystemClock.uptimeMillis();
+            }
+
+            /**
+             * Called after a track has been appended to the list.
+             */
+            void onTrackAdded()
+            {
+                int count = m_tracks.size();
+                long now = SystemClock.uptimeMillis();
+                if (count - m_batchStart >= m_batchSize || now - m_batchStartTime >= MAX_BATCH_LATENCY)
                 {
-                    albumArtworkUri = null;
+                    publish(count);
+                    m_batchStartTime = now;
+                    m_batchSize = Math.min(m_batchSize * 2, MAX_BATCH_SIZE);
                 }
+            }
 
-                AudioTrack track = new AudioTrack(id, title, artist, album, data, albumArtworkUri, duration);
-                m_playlist.addTrack(track);
-                publishProgress(track);
+            /**
+             * Publishes any tracks that have not been published yet.
+             */
+            void flush()
+            {
+                if (m_batchStart < m_tracks.size())
+                {
+                    publish(m_tracks.size());
+                }
             }
 
-            cursor.close();
-            return null;
+            private void publish(int end)
+            {
+                List<AudioTrack> batch = m_tracks.subList(m_batchStart, end);
+                publishProgress(batch.toArray(new AudioTrack[batch.size()]));
+                m_batchStart = end;
+            }
         }
 
+        /**
+         * Appends a batch of tracks to the playlist. This runs on the UI
+         * thread so the playlist is never modified while it is being bound to
+         * a list.
+         *
+         * @param batch the tracks to append
+         */
         @Override
-        protected void onProgressUpdate(AudioTrack... progress)
+        protected void onProgressUpdate(AudioTrack... batch)
         {
+            int positionStart = m_playlist.getNumTracks();
+            m_playlist.addTracks(Arrays.asList(batch));
+            m_statistics.addBatch(batch.length);
+
             for (ProgressListener listener : m_progressListeners)
             {
-                listener.onPlaylistProgress(progress[0]);
+                listener.onPlaylistProgress(positionStart, batch.length);
             }
         }
 
         @Override
         protected void onPostExecute(Void result)
         {
+            if (m_reconciledTracks != null)
+            {
+                m_playlist.replaceTracks(m_reconciledTracks);
+                m_reconciledTracks = null;
+            }
+
+            m_statistics.m_endTime = SystemClock.uptimeMillis();
+
             m_complete = true;
             for (CompletionListener listener : m_completionListeners)
             {
@@ -448,6 +910,52 @@ public class Playlist
             return m_playlist;
         }
 
+        /**
+         * Gets the string pool that the text of every scanned track is
+         * interned in. Each task has its own pool, so the pool is released
+         * along with the tracks when the library is scanned again.
+         *
+         * @return the string pool of the scan
+         */
+        public StringPool getStringPool()
+        {
+            return m_stringPool;
+        }
+
+        /**
+         * Gets the largest track ID seen by the scan. This is only valid once
+         * the task has completed.
+         *
+         * @return the largest track ID
+         */
+        public long getMaxTrackId()
+        {
+            return m_maxTrackId;
+        }
+
+        /**
+         * Gets the most recent modification time seen by the scan, in seconds
+         * since the epoch. This is only valid once the task has completed.
+         *
+         * @return the most recent modification time
+         */
+        public long getMaxDateModified()
+        {
+            return m_maxDateModified;
+        }
+
+        /**
+         * Gets the largest ID of the tracks modified at the time returned by
+         * `getMaxDateModified`. This is only valid once the task has
+         * completed.
+         *
+         * @return the largest track ID at the latest modification time
+         */
+        public long getMaxDateModifiedTrackId()
+        {
+            return m_maxDateModifiedTrackId;
+        }
+
         public void addProgressListener(ProgressListener listener)
         {
             if (!m_complete)
@@ -456,6 +964,14 @@ public class Playlist
             }
         }
 
+        public void addPartitionListener(PartitionListener listener)
+        {
+            if (!m_complete)
+            {
+                m_partitionListeners.add(listener);
+            }
+        }
+
         public void addCompletionListener(CompletionListener listener)
         {
             if (m_complete)
@@ -466,14 +982,181 @@ public class Playlist
             m_completionListeners.add(listener);
         }
 
+        /**
+         * Gets the delivery statistics for the task, such as the time taken
+         * for the first tracks to reach the playlist.
+         *
+         * @return the task statistics
+         */
+        public Statistics getStatistics()
+        {
+            return m_statistics;
+        }
+
+        /**
+         * Notified on the UI thread each time a batch of tracks is appended to
+         * the playlist.
+         */
         public interface ProgressListener
         {
-            void onPlaylistProgress(AudioTrack track);
+            void onPlaylistProgress(int positionStart, int itemCount);
+        }
+
+        /**
+         * Notified on the UI thread each time a partition of a partitioned
+         * scan completes.
+         */
+        public interface PartitionListener
+        {
+            /**
+             * @param partition     the index of the partition that completed
+             * @param numPartitions the total number of partitions
+             * @param replaced      whether the playlist was replaced with the
+             *                      tracks of every completed partition
+             */
+            void onPartitionScanned(int partition, int numPartitions, boolean replaced);
         }
 
         public interface CompletionListener
         {
             void onPlaylistCompleted();
         }
+
+        /**
+         * Determines if two lists hold identical tracks in the same order.
+         *
+         * @param lhs the first list of tracks
+         * @param rhs the second list of tracks
+         *
+         * @return true if the lists are identical, false otherwise.
+         */
+        private static boolean isSameTrackList(List<AudioTrack> lhs, List<AudioTrack> rhs)
+        {
+            if (lhs.size() != rhs.size())
+            {
+                return false;
+            }
+
+            for (int i = 0; i < lhs.size(); ++i)
+            {
+                if (!lhs.get(i).contentEquals(rhs.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Statistics describing how tracks were delivered to the playlist.
+         * These are only updated on the UI thread.
+         */
+        public static class Statistics
+        {
+            long m_startTime;
+            long m_firstBatchTime;
+            long m_endTime;
+            long m_storeSize;
+            long m_stringBytesSaved;
+            int  m_numPartitions;
+
+            int m_numBatches;
+            int m_numTracks;
+            int m_minBatchSize;
+            int m_maxBatchSize;
+
+            void addBatch(int size)
+            {
+                if (m_numBatches == 0)
+                {
+                    m_firstBatchTime = SystemClock.uptimeMillis();
+                    m_minBatchSize = size;
+                }
+
+                ++m_numBatches;
+                m_numTracks += size;
+                m_minBatchSize = Math.min(m_minBatchSize, size);
+                m_maxBatchSize = Math.max(m_maxBatchSize, size);
+            }
+
+            /**
+             * @return Time in milliseconds from the task starting to the first
+             *         tracks being added to the playlist, or -1 if no tracks
+             *         have been added yet.
+             */
+            public long getTimeToFirstTrack()
+            {
+                return m_numBatches == 0 ? -1 : m_firstBatchTime - m_startTime;
+            }
+
+            /**
+             * @return Time in milliseconds from the task starting to it
+             *         completing, or -1 if it has not completed yet.
+             */
+            public long getTotalTime()
+            {
+                return m_endTime == 0 ? -1 : m_endTime - m_startTime;
+            }
+
+            public int getNumBatches()
+            {
+                return m_numBatches;
+            }
+
+            public int getNumTracks()
+            {
+                return m_numTracks;
+            }
+
+            public int getMinBatchSize()
+            {
+                return m_minBatchSize;
+            }
+
+            public int getMaxBatchSize()
+            {
+                return m_maxBatchSize;
+            }
+
+            /**
+             * @return Estimated size in bytes of the scanned track data
+             */
+            public long getStoreSize()
+            {
+                return m_storeSize;
+            }
+
+            /**
+             * @return Estimated bytes saved by string pooling during the scan
+             */
+            public long getStringBytesSaved()
+            {
+                return m_stringBytesSaved;
+            }
+
+            /**
+             * @return Number of partitions read in parallel, or 0 if the scan
+             *         was sequential
+             */
+            public int getNumPartitions()
+            {
+                return m_numPartitions;
+            }
+
+            public int getAverageBatchSize()
+            {
+                return m_numBatches == 0 ? 0 : m_numTracks / m_numBatches;
+            }
+
+            @Override
+            public String toString()
+            {
+                return String.format(Locale.UK,
+                    "%d tracks in %d batches (min %d, avg %d, max %d), first tracks after %dms, complete after %dms, %dKB of track data, %dKB saved by string pooling, %d partitions",
+                    m_numTracks, m_numBatches, m_minBatchSize, getAverageBatchSize(), m_maxBatchSize,
+                    getTimeToFirstTrack(), getTotalTime(), m_storeSize / 1024, m_stringBytesSaved / 1024, m_numPartitions
+                );
+            }
+        }
     }
 }
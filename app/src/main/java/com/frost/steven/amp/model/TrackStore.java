@@ -0,0 +1,232 @@
+package com.frost.steven.amp.model;
+
+import com.frost.steven.amp.utils.StringPool;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for audio track metadata. Each column is a primitive array
+ * indexed by row, and the title, artist and album columns hold IDs from a
+ * `StringPool` so values shared between tracks, such as the artist and album
+ * of every track on an album, are only stored once across every store built
+ * by the same scan. Track locations are unique to each track and are held
+ * directly. `AudioTrack` instances are lightweight views over a single row.
+ *
+ * Rows are appended by a single thread and never change once appended. A
+ * store is usually filled on a background thread while earlier rows are
+ * already bound on the UI thread, so the columns are published through a
+ * volatile reference after they grow and the size is published after each
+ * row is written. Rows are then read without any locking.
+ */
+public class TrackStore
+{
+    private volatile Columns m_columns;
+    private volatile int     m_size;
+
+    private StringPool m_stringPool;
+
+    /**
+     * Constructor
+     *
+     * @param capacity   The number of rows to allocate up front
+     * @param stringPool The pool holding the text of every row
+     */
+    public TrackStore(int capacity, StringPool stringPool)
+    {
+        m_columns    = new Columns(Math.max(capacity, 1));
+        m_stringPool = stringPool;
+    }
+
+    /**
+     * Appends a row to the store.
+     *
+     * @param id         MediaStore track ID
+     * @param albumId    MediaStore album ID
+     * @param hasArtwork Whether the album has artwork
+     * @param title      Track title
+     * @param artist     Primary artist
+     * @param album      Album name
+     * @param data       Track location in storage
+     * @param duration   Track duration in milliseconds
+     *
+     * @return A view over the new row
+     */
+    public AudioTrack add(long id, long albumId, boolean hasArtwork, String title, String artist, String album, String data, int duration)
+    {
+        return addInterned(id, albumId, hasArtwork,
+            m_stringPool.intern(title),
+            m_stringPool.intern(artist),
+            m_stringPool.intern(album),
+            data,
+            duration
+        );
+    }
+
+    /**
+     * Appends a row whose text has already been interned in the store's
+     * string pool.
+     *
+     * @param id          MediaStore track ID
+     * @param albumId     MediaStore album ID
+     * @param hasArtwork  Whether the album has artwork
+     * @param titleId     Pool ID of the track title
+     * @param artistId    Pool ID of the primary artist
+     * @param albumNameId Pool ID of the album name
+     * @param data        Track location in storage
+     * @param duration    Track duration in milliseconds
+     *
+     * @return A view over the new row
+     */
+    public AudioTrack addInterned(long id, long albumId, boolean hasArtwork, int titleId, int artistId, int albumNameId, String data, int duration)
+    {
+        int row = m_size;
+        Columns columns = m_columns;
+        if (row == columns.m_ids.length)
+        {
+            columns = new Columns(columns, row * 2);
+            m_columns = columns;
+        }
+
+        columns.m_ids[row]       = id;
+        columns.m_albumIds[row]  = albumId;
+        columns.m_durations[row] = duration;
+        columns.m_artwork[row]   = hasArtwork;
+        columns.m_titles[row]    = titleId;
+        columns.m_artists[row]   = artistId;
+        columns.m_albums[row]    = albumNameId;
+        columns.m_data[row]      = data;
+
+        // Publishes the row to other threads
+        m_size = row + 1;
+
+        return new AudioTrack(this, row);
+    }
+
+    /**
+     * Moves the text of every row into another pool. Stores that are filled
+     * in parallel each use their own pool, so the threads don't contend on a
+     * shared one, and are moved into the pool of the scan once they are
+     * complete. This must be called by the thread that fills the store and
+     * before any row is read by another thread.
+     *
+     * @param stringPool The pool to move the text into
+     */
+    void moveToPool(StringPool stringPool)
+    {
+        int[] ids = m_stringPool.mergeInto(stringPool);
+
+        Columns columns = m_columns;
+        for (int row = 0; row < m_size; ++row)
+        {
+            columns.m_titles[row]  = remap(ids, columns.m_titles[row]);
+            columns.m_artists[row] = remap(ids, columns.m_artists[row]);
+            columns.m_albums[row]  = remap(ids, columns.m_albums[row]);
+        }
+        m_stringPool = stringPool;
+    }
+
+    /**
+     * @return The number of rows in the store
+     */
+    public int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * Estimates the number of bytes retained by the columns of the store.
+     * Text is held by the string pool or by the strings of each row and is
+     * not included.
+     *
+     * @return The estimated size in bytes
+     */
+    public long estimateSize()
+    {
+        return (long)m_columns.m_ids.length * (8 + 8 + 4 + 1 + 4 * 4);
+    }
+
+    long getId(int row)
+    {
+        return m_columns.m_ids[row];
+    }
+
+    long getAlbumId(int row)
+    {
+        return m_columns.m_albumIds[row];
+    }
+
+    int getDuration(int row)
+    {
+        return m_columns.m_durations[row];
+    }
+
+    boolean hasArtwork(int row)
+    {
+        return m_columns.m_artwork[row];
+    }
+
+    String getTitle(int row)
+    {
+        return m_stringPool.get(m_columns.m_titles[row]);
+    }
+
+    String getArtist(int row)
+    {
+        return m_stringPool.get(m_columns.m_artists[row]);
+    }
+
+    String getAlbum(int row)
+    {
+        return m_stringPool.get(m_columns.m_albums[row]);
+    }
+
+    String getData(int row)
+    {
+        return m_columns.m_data[row];
+    }
+
+    private static int remap(int[] ids, int id)
+    {
+        return id == StringPool.NULL_ID ? id : ids[id];
+    }
+
+    /**
+     * The column arrays of a store. A new instance is published each time the
+     * store grows, so a reader always sees fully copied arrays.
+     */
+    private static class Columns
+    {
+        final long[]    m_ids;
+        final long[]    m_albumIds;
+        final int[]     m_durations;
+        final boolean[] m_artwork;
+        final int[]     m_titles;
+        final int[]     m_artists;
+        final int[]     m_albums;
+        final String[]  m_data;
+
+        Columns(int capacity)
+        {
+            m_ids       = new long[capacity];
+            m_albumIds  = new long[capacity];
+            m_durations = new int[capacity];
+            m_artwork   = new boolean[capacity];
+            m_titles    = new int[capacity];
+            m_artists   = new int[capacity];
+            m_albums    = new int[capacity];
+            m_data      = new String[capacity];
+        }
+
+        Columns(Columns other, int capacity)
+        {
+            m_ids       = Arrays.copyOf(other.m_ids, capacity);
+            m_albumIds  = Arrays.copyOf(other.m_albumIds, capacity);
+            m_durations = Arrays.copyOf(other.m_durations, capacity);
+            m_artwork   = Arrays.copyOf(other.m_artwork, capacity);
+            m_titles    = Arrays.copyOf(other.m_titles, capacity);
+            m_artists   = Arrays.copyOf(other.m_artists, capacity);
+            m_albums    = Arrays.copyOf(other.m_albums, capacity);
+            m_data      = Arrays.copyOf(other.m_data, capacity);
+        }
+    }
+}
@@ -1,32 +1,41 @@
 package com.frost.steven.amp.service;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Binder;
-import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
-import android.support.v7.app.NotificationCompat;
 import android.util.Log;
-import android.widget.RemoteViews;
 import android.widget.Toast;
 
-import com.frost.steven.amp.ui.PlayerActivity;
+import com.frost.steven.amp.helpers.ArtworkDiskCache;
+import com.frost.steven.amp.helpers.BitmapPool;
+import com.frost.steven.amp.helpers.BitmapResolver;
 import com.frost.steven.amp.R;
 import com.frost.steven.amp.model.AudioTrack;
 import com.frost.steven.amp.model.Playlist;
+import com.frost.steven.amp.utils.ListenableArrayList;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * A foreground service that acts as a front end for a media player. This
@@ -35,18 +44,79 @@ import java.io.IOException;
  *
  * This service also displays a permanent notification while in a playing state
  * which can be dismissed while music is paused or stopped.
+ *
+ * The media players are owned by a dedicated player thread. The public
+ * methods only queue commands for that thread, so transport controls are
+ * never held up by the UI and blocking player calls never stall it. Commands
+ * are handled one at a time in the order they were sent. After each command
+ * the player thread publishes an immutable snapshot of its state, which the
+ * query methods read, and listeners are notified on the main thread.
+ *
+ * Playback is gapless. While a track plays the next track in the playlist is
+ * prepared on a second player, which is chained to the current one with
+ * `setNextMediaPlayer` and takes over when the current track completes. The
+ * prepared track is checked again whenever shuffle, repeat or the playlist
+ * itself changes.
+ *
+ * When a crossfade is set the next track is not chained. Instead it is
+ * started before the current track ends and the two are faded across by a
+ * `VolumeRampScheduler`, with the outgoing track moved to a third player so
+ * the track after can be prepared during the fade.
+ *
+ * The time taken by each phase of starting a track is recorded in
+ * `PlaybackLatency` histograms, which are printed by `dumpsys activity
+ * service MediaService`.
+ *
+ * The notification artwork is loaded once per album, scaled to the size of
+ * the notification, and kept until the track moves to another album, so
+ * SystemUI is never sent the full size cover to decode.
  */
 public class MediaService extends Service
-        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, AudioManager.OnAudioFocusChangeListener
+        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, AudioManager.OnAudioFocusChangeListener, ListenableArrayList.OnCollectionChangedListener
 {
     public static final String ACTION_PREVIOUS   = "com.frost.steven.MediaService.ACTION_PREVIOUS";
     public static final String ACTION_PLAY_PAUSE = "com.frost.steven.MediaService.ACTION_PLAY_PAUSE";
     public static final String ACTION_NEXT       = "com.frost.steven.MediaService.ACTION_NEXT";
 
-    private static final int NOTIFICATION_ID = 1337;
-
-    private OnTrackChangedListener     m_onTrackChanged     = null;
-    private OnPlayStateChangedListener m_onPlayStateChanged = null;
+    // Shared preference holding the crossfade duration in milliseconds
+    public static final String PREF_CROSSFADE_DURATION = "crossfade_duration";
+
+    private static final int  NOTIFICATION_ID  = 1337;
+    private static final long RAMP_TICK_MILLIS = 20;
+
+    // Notifications are published at most once a frame
+    private static final long NOTIFICATION_INTERVAL_MILLIS = 16;
+
+    // Commands handled by the player thread
+    private static final int CMD_INIT             = 1;
+    private static final int CMD_RELEASE          = 2;
+    private static final int CMD_PLAY             = 3;
+    private static final int CMD_PAUSE            = 4;
+    private static final int CMD_PLAY_PAUSE       = 5;
+    private static final int CMD_STOP             = 6;
+    private static final int CMD_PREVIOUS         = 7;
+    private static final int CMD_NEXT             = 8;
+    private static final int CMD_SEEK             = 9;
+    private static final int CMD_SET_PLAYLIST     = 10;
+    private static final int CMD_SET_REPEAT       = 11;
+    private static final int CMD_SET_SHUFFLE      = 12;
+    private static final int CMD_SET_CROSSFADE    = 13;
+    private static final int CMD_PLAYLIST_CHANGED = 14;
+    private static final int CMD_AUDIO_FOCUS      = 15;
+    private static final int CMD_START_CROSSFADE  = 16;
+    private static final int CMD_FINISH_CROSSFADE = 17;
+    private static final int CMD_ARTWORK_LOADED   = 18;
+    private static final int CMD_PLAY_TRACK       = 19;
+
+    private static final int NO_POSITION = -1;
+
+    private volatile OnTrackChangedListener     m_onTrackChanged     = null;
+    private volatile OnPlayStateChangedListener m_onPlayStateChanged = null;
+
+    private HandlerThread     m_playerThread;
+    private Handler           m_playerHandler;
+    private Handler           m_mainHandler;
+    private volatile Snapshot m_snapshot = new Snapshot();
 
     private PlayerState m_playerState = PlayerState.Stopped;
     private Playlist    m_playlist    = null;
@@ -54,9 +124,48 @@ public class MediaService extends Service
 
     private final IBinder       m_binder = new MediaBinder();
     private MediaPlayer         m_player = null;
-    private NotificationManager m_notificationManager;
+    private volatile float      m_volume = 1.0f;
+    private NotificationRenderer m_notificationRenderer;
     private BroadcastReceiver   m_broadcastReceiver;
     private AudioManager        m_audioManager;
+    private SharedPreferences   m_preferences;
+
+    // Held here as the preferences only keep a weak reference to listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener m_preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener()
+    {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+        {
+            if (PREF_CROSSFADE_DURATION.equals(key))
+            {
+                setCrossfadeDuration(preferences.getInt(PREF_CROSSFADE_DURATION, 0));
+            }
+        }
+    };
+
+    private int         m_artworkSize;
+    private long        m_artworkAlbumId = BitmapResolver.NO_ARTWORK;
+    private Bitmap      m_artwork        = null;
+    private ArtworkTask m_artworkTask    = null;
+    private BitmapPool  m_artworkPool;
+
+    private MediaPlayer m_nextPlayer   = null;
+    private AudioTrack  m_nextTrack    = null;
+    private boolean     m_nextPrepared = false;
+    private boolean     m_nextChained  = false;
+
+    private int                      m_crossfadeMillis = 0;
+    private MediaPlayer              m_fadePlayer      = null;
+    private VolumeRampScheduler      m_rampScheduler;
+    private VolumeRampScheduler.Ramp m_fadeInRamp      = null;
+    private VolumeRampScheduler.Ramp m_fadeOutRamp     = null;
+
+    private final PlaybackLatency m_latency       = new PlaybackLatency();
+    private long                  m_requestTime   = 0;
+    private long                  m_focusDuration = 0;
+    private long                  m_startTime     = 0;
+    private long                  m_prepareTime   = 0;
+    private String                m_startGroup    = null;
 
     public enum PlayerState
     {
@@ -71,17 +180,28 @@ public class MediaService extends Service
     public void onCreate()
     {
         super.onCreate();
-        m_notificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
-        m_player = new MediaPlayer();
+        m_playerThread = new HandlerThread("MediaService", Process.THREAD_PRIORITY_AUDIO);
+        m_playerThread.start();
+        m_playerHandler = new Handler(m_playerThread.getLooper(), new PlayerCallback());
+        m_mainHandler = new Handler(Looper.getMainLooper());
+        m_notificationRenderer = new NotificationRenderer(this, m_playerHandler, NOTIFICATION_ID, NOTIFICATION_INTERVAL_MILLIS);
 
-        m_audioManager = (AudioManager)getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+        // The players deliver their events to the thread that created them
+        m_playerHandler.sendEmptyMessage(CMD_INIT);
+
+        m_rampScheduler = new VolumeRampScheduler(VolumeRampScheduler.SYSTEM_CLOCK, RAMP_TICK_MILLIS);
+        m_rampScheduler.startThread();
+
+        m_preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        m_preferences.registerOnSharedPreferenceChangeListener(m_preferenceListener);
+        setCrossfadeDuration(m_preferences.getInt(PREF_CROSSFADE_DURATION, 0));
 
-        m_player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-        m_player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        m_audioManager = (AudioManager)getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
 
-        m_player.setOnPreparedListener(this);
-        m_player.setOnCompletionListener(this);
-        m_player.setOnErrorListener(this);
+        // The pool holds the previous album's artwork so the next one can be
+        // decoded into it
+        m_artworkSize = getResources().getDimensionPixelSize(R.dimen.notification_artwork_size);
+        m_artworkPool = new BitmapPool(4L * m_artworkSize * m_artworkSize * 4);
 
         // Register the broadcast receiver for the notification transport controls and headphone removal
         IntentFilter intentFilter = new IntentFilter();
@@ -97,13 +217,12 @@ public class MediaService extends Service
     @Override
     public void onDestroy()
     {
-        stop();
-        m_notificationManager.cancel(NOTIFICATION_ID);
-
-        m_player.reset();
-        m_player.release();
-
         unregisterReceiver(m_broadcastReceiver);
+        m_preferences.unregisterOnSharedPreferenceChangeListener(m_preferenceListener);
+
+        // Commands already queued are handled before the players are released
+        m_playerHandler.sendEmptyMessage(CMD_RELEASE);
+        m_playerThread.quitSafely();
 
         super.onDestroy();
     }
@@ -127,6 +246,13 @@ public class MediaService extends Service
         return false;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args)
+    {
+        m_latency.dump(writer);
+        writer.println("Notifications: " + m_notificationRenderer.getNumPublished() + " published, " + m_notificationRenderer.getNumSkipped() + " unchanged");
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId)
     {
@@ -136,27 +262,97 @@ public class MediaService extends Service
     @Override
     public void onPrepared(MediaPlayer player)
     {
+        if (player == m_nextPlayer)
+        {
+            // The next track starts as soon as the current one completes,
+            // unless it is going to be faded in
+            m_nextPrepared = true;
+            chainNextTrack();
+            return;
+        }
+
+        if (m_startGroup != null)
+        {
+            long now = System.nanoTime();
+            m_latency.record(m_startGroup, PlaybackLatency.Phase.Prepare, now - m_prepareTime);
+            m_latency.record(m_startGroup, PlaybackLatency.Phase.Total, now - m_startTime);
+            m_startGroup = null;
+        }
+
         player.start();
         setPlayerState(PlayerState.Playing);
+        prepareNextTrack();
+        scheduleCrossfade();
+        publishSnapshot();
     }
 
     @Override
     public void onCompletion(MediaPlayer player)
     {
+        if (player != m_player)
+        {
+            return;
+        }
+
+        if (m_nextPrepared)
+        {
+            // A track that was due to be faded in but wasn't, because the
+            // current track was too short, is started now instead
+            if (!m_nextChained)
+            {
+                m_nextPlayer.start();
+            }
+
+            // The next player has already started, so it becomes the current
+            // player and the finished one is used to prepare the track after
+            m_player = m_nextPlayer;
+            m_nextPlayer = player;
+            m_nextPlayer.reset();
+            m_nextTrack = null;
+            m_nextPrepared = false;
+            m_nextChained = false;
+
+            m_playlist.moveToNextTrack();
+            notifyTrackChanged();
+            updateNotification();
+            prepareNextTrack();
+            scheduleCrossfade();
+            publishSnapshot();
+            return;
+        }
+
         setPlayerState(PlayerState.Stopped);
 
         if (m_playlist.hasNextTrack())
         {
             m_playlist.moveToNextTrack();
             notifyTrackChanged();
-            play();
+            handlePlay(System.nanoTime());
         }
+        publishSnapshot();
     }
 
     @Override
     public boolean onError(MediaPlayer player, int what, int extra)
     {
+        if (player == m_nextPlayer)
+        {
+            // The next track will be prepared again when it is played
+            Log.w(MediaService.class.getName(), "Unable to prepare the next track");
+            cancelNextTrack();
+            return true;
+        }
+        if (player == m_fadePlayer)
+        {
+            finishCrossfade();
+            return true;
+        }
+
+        finishCrossfade();
         setPlayerState(PlayerState.Stopped);
+        cancelNextTrack();
+        m_startGroup = null;
+        publishSnapshot();
 
         Log.e(MediaService.class.getName(), "An error occurred in the media player");
         return true;
@@ -164,6 +360,11 @@ public class MediaService extends Service
 
     @Override
     public void onAudioFocusChange(int focusChange)
+    {
+        m_playerHandler.obtainMessage(CMD_AUDIO_FOCUS, focusChange, 0).sendToTarget();
+    }
+
+    private void handleAudioFocusChange(int focusChange)
     {
         switch (focusChange)
         {
@@ -171,20 +372,20 @@ public class MediaService extends Service
             if (m_playerState != PlayerState.Playing)
             {
                 playAuthorized();
-                m_player.setVolume(1.0f, 1.0f);
+                setVolume(1.0f);
             }
             break;
         case AudioManager.AUDIOFOCUS_LOSS:
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
             if (m_playerState == PlayerState.Playing)
             {
-                pause();
+                handlePause();
             }
             break;
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
             if (m_playerState == PlayerState.Playing)
             {
-                m_player.setVolume(0.1f, 0.1f);
+                setVolume(0.1f);
             }
             break;
         }
@@ -199,15 +400,37 @@ public class MediaService extends Service
      */
     public void play()
     {
+        m_playerHandler.obtainMessage(CMD_PLAY, System.nanoTime()).sendToTarget();
+    }
+
+    /**
+     * Handles a request to play on the player thread.
+     *
+     * @param requestTime the time that play was requested, from `System.nanoTime`
+     */
+    private void handlePlay(long requestTime)
+    {
+        long focusTime = System.nanoTime();
         int result = m_audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+        m_requestTime = requestTime;
+        m_focusDuration = System.nanoTime() - focusTime;
+
         if (result == AudioManager.AUDIOFOCUS_REQUEST_FAILED)
         {
-            Toast.makeText(getApplicationContext(), "Unable to play audio at this time.", Toast.LENGTH_LONG).show();
+            m_mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Toast.makeText(getApplicationContext(), "Unable to play audio at this time.", Toast.LENGTH_LONG).show();
+                }
+            });
         }
         else
         {
             playAuthorized();
         }
+        m_requestTime = 0;
     }
 
     /**
@@ -221,16 +444,39 @@ public class MediaService extends Service
         {
             m_player.start();
             setPlayerState(PlayerState.Playing);
+            scheduleCrossfade();
             return;
         }
 
-        m_player.reset();
+        finishCrossfade();
+        cancelNextTrack();
+
         AudioTrack track = m_playlist.getCurrentTrack();
-        Uri trackUri = Uri.parse(track.Data);
+        Uri trackUri = Uri.parse(track.getData());
+
+        // Starts are timed from the request to play, or from here when
+        // playback resumes on regaining audio focus
+        String group = PlaybackLatency.getGroup(track.getData());
+        long startTime = System.nanoTime();
+        if (m_requestTime != 0)
+        {
+            startTime = m_requestTime;
+            m_latency.record(group, PlaybackLatency.Phase.AudioFocus, m_focusDuration);
+        }
+
+        long time = System.nanoTime();
+        m_player.reset();
+        m_latency.record(group, PlaybackLatency.Phase.Reset, System.nanoTime() - time);
 
         try
         {
+            time = System.nanoTime();
             m_player.setDataSource(this, trackUri);
+            m_latency.record(group, PlaybackLatency.Phase.SetDataSource, System.nanoTime() - time);
+
+            m_startGroup = group;
+            m_startTime = startTime;
+            m_prepareTime = System.nanoTime();
             m_player.prepareAsync();
         }
         catch (IOException ex)
@@ -244,9 +490,16 @@ public class MediaService extends Service
      * has no effect otherwise.
      */
     public void pause()
+    {
+        m_playerHandler.sendEmptyMessage(CMD_PAUSE);
+    }
+
+    private void handlePause()
     {
         if (m_playerState == PlayerState.Playing)
         {
+            finishCrossfade();
+            m_playerHandler.removeMessages(CMD_START_CROSSFADE);
             m_player.pause();
             setPlayerState(PlayerState.Paused);
         }
@@ -257,9 +510,17 @@ public class MediaService extends Service
      * `Paused` state, has no effect otherwise.
      */
     public void stop()
+    {
+        m_playerHandler.sendEmptyMessage(CMD_STOP);
+    }
+
+    private void handleStop()
     {
         if (m_playerState != PlayerState.Stopped)
         {
+            finishCrossfade();
+            m_playerHandler.removeMessages(CMD_START_CROSSFADE);
+            cancelNextTrack();
             m_player.stop();
             setPlayerState(PlayerState.Stopped);
         }
@@ -271,10 +532,7 @@ public class MediaService extends Service
      */
     public void previousTrack()
     {
-        stop();
-        m_playlist.moveToPreviousTrack();
-        notifyTrackChanged();
-        play();
+        m_playerHandler.obtainMessage(CMD_PREVIOUS, System.nanoTime()).sendToTarget();
     }
 
     /**
@@ -283,34 +541,78 @@ public class MediaService extends Service
      */
     public void nextTrack()
     {
-        stop();
-        m_playlist.moveToNextTrack();
-        notifyTrackChanged();
-        play();
+        m_playerHandler.obtainMessage(CMD_NEXT, System.nanoTime()).sendToTarget();
     }
 
     public void setRepeat(boolean repeat)
     {
-        m_playlist.setRepeat(repeat);
+        m_playerHandler.obtainMessage(CMD_SET_REPEAT, repeat ? 1 : 0, 0).sendToTarget();
     }
 
     public void setShuffle(boolean shuffle)
     {
-        m_playlist.setShuffle(shuffle);
+        m_playerHandler.obtainMessage(CMD_SET_SHUFFLE, shuffle ? 1 : 0, 0).sendToTarget();
     }
 
     public boolean isRepeatEnabled()
     {
-        return m_playlist.isRepeatEnabled();
+        return m_snapshot.m_repeat;
     }
 
     public boolean isShuffleEnabled()
     {
-        return m_playlist.isShuffleEnabled();
+        return m_snapshot.m_shuffle;
     }
 
     public void setPlaylist(Playlist playlist)
     {
+        m_playerHandler.obtainMessage(CMD_SET_PLAYLIST, NO_POSITION, 0, playlist).sendToTarget();
+    }
+
+    /**
+     * Makes a playlist current and plays the track at the given position,
+     * unless it is already the current track. The cursor of the playlist is
+     * moved on the player thread along with the other commands, so it never
+     * changes under a command that is already queued.
+     *
+     * @param playlist the playlist to play
+     * @param position the position of the track to play
+     */
+    public void playTrack(Playlist playlist, int position)
+    {
+        TrackSelection selection = new TrackSelection(playlist, position, System.nanoTime());
+        m_playerHandler.obtainMessage(CMD_PLAY_TRACK, selection).sendToTarget();
+    }
+
+    private void handlePlayTrack(TrackSelection selection)
+    {
+        AudioTrack currentTrack = m_playlist == null ? null : m_playlist.getCurrentTrack();
+        handleSetPlaylist(selection.m_playlist, selection.m_position);
+        if (m_playlist.getCurrentTrack() == currentTrack)
+        {
+            return;
+        }
+
+        handleStop();
+        m_prevTrack = currentTrack;
+        notifyTrackChanged();
+        handlePlay(selection.m_requestTime);
+    }
+
+    /**
+     * Makes a playlist current.
+     *
+     * @param playlist the new playlist
+     * @param position the position to move the cursor of the playlist to, or
+     *                 `NO_POSITION` to leave it where it is
+     */
+    private void handleSetPlaylist(Playlist playlist, int position)
+    {
+        if (position != NO_POSITION)
+        {
+            playlist.setCursor(position);
+        }
+
         // Preserve the repeat and shuffle settings if we have an existing playlist
         if (m_playlist != null)
         {
@@ -318,13 +620,57 @@ public class MediaService extends Service
             playlist.setShuffle(m_playlist.isShuffleEnabled());
         }
 
+        if (m_playlist != null)
+        {
+            m_playlist.detachPlaylistChangedListener(this);
+        }
+        playlist.attachPlaylistChangedListener(this);
+
         m_playlist = playlist;
         m_prevTrack = m_playlist.getCurrentTrack();
+        updateNextTrack();
+    }
+
+    @Override
+    public void onPlaylistCollectionChanged(ListenableArrayList collection)
+    {
+        // A playlist that is still loading changes many times in a row, so
+        // only the last change is handled
+        m_playerHandler.removeMessages(CMD_PLAYLIST_CHANGED);
+        m_playerHandler.sendEmptyMessage(CMD_PLAYLIST_CHANGED);
+    }
+
+    /**
+     * Sets how long consecutive tracks overlap for. Tracks play gaplessly
+     * when this is zero. The service applies `PREF_CROSSFADE_DURATION`
+     * whenever it changes, so this is only needed to override it.
+     *
+     * @param millis the length of the crossfade in milliseconds
+     */
+    public void setCrossfadeDuration(int millis)
+    {
+        m_playerHandler.obtainMessage(CMD_SET_CROSSFADE, Math.max(millis, 0), 0).sendToTarget();
+    }
+
+    public int getCrossfadeDuration()
+    {
+        return m_snapshot.m_crossfadeMillis;
+    }
+
+    /**
+     * Gets the latency histograms for starting tracks, which are updated
+     * each time a track starts.
+     *
+     * @return the playback start latencies
+     */
+    public PlaybackLatency getPlaybackLatency()
+    {
+        return m_latency;
     }
 
     public PlayerState getPlayerState()
     {
-        return m_playerState;
+        return m_snapshot.m_state;
     }
 
     /**
@@ -355,21 +701,26 @@ public class MediaService extends Service
      */
     public AudioTrack getCurrentTrack()
     {
-        if (m_playlist != null)
-        {
-            return m_playlist.getCurrentTrack();
-        }
-        return null;
+        return m_snapshot.m_track;
     }
 
     /**
-     * Gets the current playhead timecode in milliseconds
+     * Gets the current playhead timecode in milliseconds. While playing this
+     * is extrapolated from the last snapshot of the player.
      *
      * @return the playhead timecode
      */
     public int getPlayheadTimecode()
     {
-        return m_player.getCurrentPosition();
+        Snapshot snapshot = m_snapshot;
+        if (snapshot.m_state != PlayerState.Playing)
+        {
+            return snapshot.m_timecode;
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - snapshot.m_timecodeTime;
+        int timecode = (int)(snapshot.m_timecode + elapsed);
+        return snapshot.m_track == null ? timecode : Math.min(timecode, snapshot.m_track.getDuration());
     }
 
     /**
@@ -379,43 +730,291 @@ public class MediaService extends Service
      */
     public void setPlayheadTimecode(int timecode)
     {
-        m_player.seekTo(timecode);
+        // The new position is published straight away so the UI doesn't
+        // show the old one until the seek has been handled
+        m_snapshot = new Snapshot(m_snapshot, timecode);
+        m_playerHandler.obtainMessage(CMD_SEEK, timecode, 0).sendToTarget();
+    }
+
+    private void handleSeek(int timecode)
+    {
+        if (m_playerState != PlayerState.Stopped)
+        {
+            m_player.seekTo(timecode);
+            scheduleCrossfade();
+        }
+    }
+
+    /**
+     * Publishes the state of the player thread for the query methods. This
+     * must be called on the player thread whenever the state changes.
+     */
+    private void publishSnapshot()
+    {
+        m_snapshot = new Snapshot(
+            m_playerState,
+            m_playlist == null ? null : m_playlist.getCurrentTrack(),
+            m_playlist != null && m_playlist.isRepeatEnabled(),
+            m_playlist != null && m_playlist.isShuffleEnabled(),
+            m_playerState == PlayerState.Stopped || m_player == null ? 0 : m_player.getCurrentPosition(),
+            m_crossfadeMillis
+        );
+    }
+
+    private MediaPlayer createPlayer()
+    {
+        MediaPlayer player = new MediaPlayer();
+        player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        return player;
+    }
+
+    /**
+     * Sets the volume of the players, so a track that starts while the
+     * volume is ducked is ducked too. Players that are being faded pick up
+     * the new volume on the next tick of their ramp.
+     *
+     * @param volume the volume, from 0 to 1
+     */
+    private void setVolume(float volume)
+    {
+        m_volume = volume;
+        if (m_fadeInRamp == null)
+        {
+            m_player.setVolume(volume, volume);
+        }
+        m_nextPlayer.setVolume(volume, volume);
+    }
+
+    /**
+     * Chains the prepared next track to the current one if there is no
+     * crossfade, or unchains it if there is.
+     */
+    private void chainNextTrack()
+    {
+        if (!m_nextPrepared || m_nextChained == (m_crossfadeMillis == 0))
+        {
+            return;
+        }
+
+        m_nextChained = m_crossfadeMillis == 0;
+        m_player.setNextMediaPlayer(m_nextChained ? m_nextPlayer : null);
+    }
+
+    /**
+     * Schedules the crossfade into the next track, replacing any crossfade
+     * that was already scheduled. The crossfade starts its length before the
+     * end of the current track.
+     */
+    private void scheduleCrossfade()
+    {
+        m_playerHandler.removeMessages(CMD_START_CROSSFADE);
+        if (m_crossfadeMillis == 0 || m_playerState != PlayerState.Playing)
+        {
+            return;
+        }
+
+        int remaining = m_player.getDuration() - m_player.getCurrentPosition();
+        m_playerHandler.sendEmptyMessageDelayed(CMD_START_CROSSFADE, Math.max(remaining - m_crossfadeMillis, 0));
+    }
+
+    /**
+     * Starts the next track and fades it in while the current track fades
+     * out. The current track is moved to the fade player, and the next track
+     * becomes the current one straight away.
+     */
+    private void startCrossfade()
+    {
+        if (!m_nextPrepared || m_nextChained || m_playerState != PlayerState.Playing)
+        {
+            // The next track isn't ready, so it will follow the current one
+            // without a fade
+            return;
+        }
+        finishCrossfade();
+
+        // Short tracks fade for the time they have left
+        int remaining = Math.max(m_player.getDuration() - m_player.getCurrentPosition(), 0);
+        long duration = Math.min(m_crossfadeMillis, remaining);
+
+        MediaPlayer idlePlayer = m_fadePlayer;
+        m_fadePlayer = m_player;
+        m_player = m_nextPlayer;
+        m_nextPlayer = idlePlayer;
+        m_nextTrack = null;
+        m_nextPrepared = false;
+
+        m_fadeInRamp = m_rampScheduler.start(new PlayerVolume(m_player), 0.0f, 1.0f, duration, null);
+        m_player.start();
+        m_fadeOutRamp = m_rampScheduler.start(new PlayerVolume(m_fadePlayer), 1.0f, 0.0f, duration, new VolumeRampScheduler.OnRampFinishedListener()
+        {
+            @Override
+            public void onRampFinished(VolumeRampScheduler.Ramp ramp)
+            {
+                m_playerHandler.obtainMessage(CMD_FINISH_CROSSFADE, ramp).sendToTarget();
+            }
+        });
+
+        m_playlist.moveToNextTrack();
+        notifyTrackChanged();
+        updateNotification();
+        prepareNextTrack();
+        scheduleCrossfade();
+    }
+
+    /**
+     * Ends a crossfade that is in progress, stopping the outgoing track and
+     * leaving the incoming track at full volume.
+     */
+    private void finishCrossfade()
+    {
+        if (m_fadeOutRamp == null)
+        {
+            return;
+        }
+
+        m_rampScheduler.cancel(m_fadeInRamp);
+        m_rampScheduler.cancel(m_fadeOutRamp);
+        m_fadeInRamp = null;
+        m_fadeOutRamp = null;
+
+        m_fadePlayer.reset();
+        m_player.setVolume(m_volume, m_volume);
     }
 
     /**
-     * Notifies any listeners that the track
+     * Prepares the track after the current one on the second player, in
+     * place of any track that was prepared before. Nothing is prepared while
+     * playback is stopped.
+     */
+    private void prepareNextTrack()
+    {
+        cancelNextTrack();
+        if (m_playlist == null || m_playerState == PlayerState.Stopped)
+        {
+            return;
+        }
+
+        AudioTrack track = m_playlist.peekNextTrack();
+        if (track == null)
+        {
+            return;
+        }
+
+        Uri trackUri = Uri.parse(track.getData());
+        try
+        {
+            m_nextPlayer.setDataSource(this, trackUri);
+            m_nextPlayer.setVolume(m_volume, m_volume);
+            m_nextPlayer.prepareAsync();
+            m_nextTrack = track;
+        }
+        catch (IOException ex)
+        {
+            Log.e(MediaService.class.getName(), "Error setting data source to '" + trackUri.toString() + "'.");
+            m_nextPlayer.reset();
+        }
+    }
+
+    /**
+     * Prepares the next track again if it is no longer the track that follows
+     * the current one, for instance because shuffle was toggled.
+     */
+    private void updateNextTrack()
+    {
+        if (m_playlist != null && m_playerState != PlayerState.Stopped && m_playlist.peekNextTrack() != m_nextTrack)
+        {
+            prepareNextTrack();
+        }
+    }
+
+    /**
+     * Discards the track prepared on the second player and unchains it from
+     * the current player.
+     */
+    private void cancelNextTrack()
+    {
+        if (m_nextTrack == null)
+        {
+            return;
+        }
+
+        // The current player can only be unchained while it is started or
+        // paused, a stopped player is reset before it is used again
+        if (m_nextChained && m_playerState != PlayerState.Stopped)
+        {
+            m_player.setNextMediaPlayer(null);
+        }
+        m_nextPlayer.reset();
+        m_nextTrack = null;
+        m_nextPrepared = false;
+        m_nextChained = false;
+    }
+
+    /**
+     * Notifies any listeners on the main thread that the track has changed.
      */
     private void notifyTrackChanged()
     {
-        if (m_onTrackChanged != null && m_playlist != null)
+        if (m_playlist == null)
         {
-            AudioTrack currentTrack = m_playlist.getCurrentTrack();
-            m_onTrackChanged.onTrackChanged(m_prevTrack, currentTrack);
-            m_prevTrack = currentTrack;
+            return;
         }
+
+        final AudioTrack prevTrack = m_prevTrack;
+        final AudioTrack currentTrack = m_playlist.getCurrentTrack();
+        m_prevTrack = currentTrack;
+
+        // Published first so the listener sees the new track
+        publishSnapshot();
+        m_mainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                OnTrackChangedListener listener = m_onTrackChanged;
+                if (listener != null)
+                {
+                    listener.onTrackChanged(prevTrack, currentTrack);
+                }
+            }
+        });
     }
 
     /**
-     * Updates the player state and notifies any player state listeners that
-     * something has changed.
+     * Updates the player state and notifies any player state listeners on the
+     * main thread that something has changed.
      *
      * @param newState the new player state
      */
-    private void setPlayerState(PlayerState newState)
+    private void setPlayerState(final PlayerState newState)
     {
-        PlayerState prevState = m_playerState;
+        final PlayerState prevState = m_playerState;
         m_playerState = newState;
 
-        if (m_onPlayStateChanged != null)
+        publishSnapshot();
+        m_mainHandler.post(new Runnable()
         {
-            m_onPlayStateChanged.onStateChanged(prevState, newState);
-        }
+            @Override
+            public void run()
+            {
+                OnPlayStateChangedListener listener = m_onPlayStateChanged;
+                if (listener != null)
+                {
+                    listener.onStateChanged(prevState, newState);
+                }
+            }
+        });
         updateNotification();
     }
 
     /**
      * Updates the service notification with the latest content and player
-     * state. An existing instance of the notification will be replaced.
+     * state. The renderer only publishes it if something visible changed.
      */
     private void updateNotification()
     {
@@ -424,70 +1023,334 @@ public class MediaService extends Service
             return;
         }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+        AudioTrack track = m_playlist.getCurrentTrack();
+        Bitmap artwork = getNotificationArtwork(track);
+        m_notificationRenderer.update(track, m_playerState == PlayerState.Playing, m_artworkAlbumId, artwork);
+    }
 
-        Intent intent = new Intent(this, PlayerActivity.class);
-        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+    /**
+     * Gets the scaled artwork for the notification of a track. If the track
+     * is on a different album to the last one the artwork is loaded in the
+     * background and the notification is updated again once it has loaded.
+     *
+     * @param track the track shown in the notification
+     *
+     * @return The artwork, or null if the placeholder should be shown.
+     */
+    private Bitmap getNotificationArtwork(AudioTrack track)
+    {
+        long albumId = track.hasCoverArt() ? track.getAlbumId() : BitmapResolver.NO_ARTWORK;
+        if (albumId == m_artworkAlbumId)
+        {
+            return m_artwork;
+        }
 
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        builder.setContentIntent(pendingIntent);
+        // The previous notification has already been sent, so its artwork
+        // can be reused
+        if (m_artworkTask != null)
+        {
+            m_artworkTask.cancel(true);
+            m_artworkTask = null;
+        }
+        if (m_artwork != null)
+        {
+            m_artworkPool.put(m_artwork);
+            m_artwork = null;
+        }
 
-        AudioTrack track = m_playlist.getCurrentTrack();
-        builder.setTicker(getResources().getString(R.string.notification_now_playing).replace("{0}", track.Title));
-        builder.setSmallIcon(R.drawable.ic_notification);
-        builder.setAutoCancel(false);
-        builder.setOngoing(m_playerState == PlayerState.Playing);
+        m_artworkAlbumId = albumId;
+        if (albumId != BitmapResolver.NO_ARTWORK)
+        {
+            // Async tasks are started from the main thread, and on the pool
+            // so the decode doesn't queue behind snapshot writes and playlist
+            // edits on the serial executor
+            final ArtworkTask task = new ArtworkTask(albumId);
+            m_artworkTask = task;
+            m_mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Loads the notification artwork for an album and refreshes the
+     * notification once it has loaded, provided the track is still on the
+     * same album.
+     */
+    private class ArtworkTask extends AsyncTask<Void, Void, Bitmap>
+    {
+        private final long m_albumId;
+        private Bitmap     m_result;
+
+        ArtworkTask(long albumId)
+        {
+            m_albumId = albumId;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params)
+        {
+            try
+            {
+                ArtworkDiskCache diskCache = ArtworkDiskCache.getInstance(MediaService.this);
+                return BitmapResolver.loadArtwork(getContentResolver(), diskCache, m_albumId, m_artworkSize, m_artworkPool);
+            }
+            catch (IOException ex)
+            {
+                Log.w(MediaService.class.getName(), "Unable to load notification artwork.", ex);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result)
+        {
+            m_result = result;
+            m_playerHandler.obtainMessage(CMD_ARTWORK_LOADED, this).sendToTarget();
+        }
 
-        Notification notification = builder.build();
-        notification.priority = Notification.PRIORITY_MAX;
-        if (Build.VERSION.SDK_INT >= 21)
+        @Override
+        protected void onCancelled(Bitmap result)
         {
-            notification.visibility = Notification.VISIBILITY_PUBLIC;
+            if (result != null)
+            {
+                m_artworkPool.put(result);
+            }
         }
+    }
 
-        RemoteViews contentView = new RemoteViews(getPackageName(), R.layout.notification_player);
-        updateRemoteViewElements(contentView);
-        notification.contentView = contentView;
+    /**
+     * Handles commands on the player thread.
+     */
+    private class PlayerCallback implements Handler.Callback
+    {
+        @Override
+        public boolean handleMessage(Message msg)
+        {
+            switch (msg.what)
+            {
+            case CMD_INIT:
+                m_player = createPlayer();
+                m_nextPlayer = createPlayer();
+                m_fadePlayer = createPlayer();
+                break;
+            case CMD_RELEASE:
+                handleRelease();
+                return true;
+            case CMD_PLAY:
+                handlePlay((Long)msg.obj);
+                break;
+            case CMD_PAUSE:
+                handlePause();
+                break;
+            case CMD_PLAY_PAUSE:
+                if (m_playerState == PlayerState.Playing)
+                {
+                    handlePause();
+                }
+                else
+                {
+                    handlePlay(System.nanoTime());
+                }
+                break;
+            case CMD_STOP:
+                handleStop();
+                break;
+            case CMD_PREVIOUS:
+                handleStop();
+                m_playlist.moveToPreviousTrack();
+                notifyTrackChanged();
+                handlePlay((Long)msg.obj);
+                break;
+            case CMD_NEXT:
+                handleStop();
+                m_playlist.moveToNextTrack();
+                notifyTrackChanged();
+                handlePlay((Long)msg.obj);
+                break;
+            case CMD_SEEK:
+                handleSeek(msg.arg1);
+                break;
+            case CMD_SET_PLAYLIST:
+                handleSetPlaylist((Playlist)msg.obj, msg.arg1);
+                break;
+            case CMD_PLAY_TRACK:
+                handlePlayTrack((TrackSelection)msg.obj);
+                break;
+            case CMD_SET_REPEAT:
+                m_playlist.setRepeat(msg.arg1 != 0);
+                updateNextTrack();
+                break;
+            case CMD_SET_SHUFFLE:
+                m_playlist.setShuffle(msg.arg1 != 0);
+                updateNextTrack();
+                break;
+            case CMD_SET_CROSSFADE:
+                m_crossfadeMillis = msg.arg1;
+                chainNextTrack();
+                scheduleCrossfade();
+                break;
+            case CMD_PLAYLIST_CHANGED:
+                updateNextTrack();
+                break;
+            case CMD_AUDIO_FOCUS:
+                handleAudioFocusChange(msg.arg1);
+                break;
+            case CMD_START_CROSSFADE:
+                startCrossfade();
+                break;
+            case CMD_FINISH_CROSSFADE:
+                if (msg.obj == m_fadeOutRamp)
+                {
+                    finishCrossfade();
+                }
+                break;
+            case CMD_ARTWORK_LOADED:
+                handleArtworkLoaded((ArtworkTask)msg.obj);
+                break;
+            default:
+                return false;
+            }
+
+            publishSnapshot();
+            return true;
+        }
+    }
+
+    /**
+     * Stops playback and releases the players. This is the last command the
+     * player thread handles.
+     */
+    private void handleRelease()
+    {
+        handleStop();
+        m_notificationRenderer.cancel();
 
-        if (Build.VERSION.SDK_INT >= 16)
+        if (m_artworkTask != null)
         {
-            RemoteViews expandedView = new RemoteViews(getPackageName(), R.layout.notification_player_expanded);
-            updateRemoteViewElements(expandedView);
-            notification.bigContentView = expandedView;
+            m_artworkTask.cancel(true);
+            m_artworkTask = null;
         }
 
-        m_notificationManager.notify(NOTIFICATION_ID, notification);
+        m_rampScheduler.shutdown();
+        m_player.reset();
+        m_player.release();
+        m_nextPlayer.reset();
+        m_nextPlayer.release();
+        m_fadePlayer.reset();
+        m_fadePlayer.release();
+
+        if (m_playlist != null)
+        {
+            m_playlist.detachPlaylistChangedListener(this);
+        }
     }
 
     /**
-     * Updates remove UI elements in the given remote view. This is for use
-     * with the two types of notification available as they share the same
-     * IDs.
+     * Shows the artwork loaded by a task in the notification, provided the
+     * task is still the current one.
      *
-     * @param view the remote view to update.
+     * @param task the task that has finished
      */
-    private void updateRemoteViewElements(RemoteViews view)
+    private void handleArtworkLoaded(ArtworkTask task)
     {
-        AudioTrack track = m_playlist.getCurrentTrack();
+        if (m_artworkTask != task)
+        {
+            if (task.m_result != null)
+            {
+                m_artworkPool.put(task.m_result);
+            }
+            return;
+        }
+        m_artworkTask = null;
 
-        view.setOnClickPendingIntent(R.id.notification_player_prev, PendingIntent.getBroadcast(this, 0, new Intent(ACTION_PREVIOUS), 0));
-        view.setOnClickPendingIntent(R.id.notification_player_playpause, PendingIntent.getBroadcast(this, 0, new Intent(ACTION_PLAY_PAUSE), 0));
-        view.setOnClickPendingIntent(R.id.notification_player_next, PendingIntent.getBroadcast(this, 0, new Intent(ACTION_NEXT), 0));
+        if (task.m_result != null)
+        {
+            m_artwork = task.m_result;
+            updateNotification();
+        }
+    }
 
-        view.setTextViewText(R.id.notification_player_title, track.Title);
-        view.setTextViewText(R.id.notification_player_artist, track.Artist);
-        view.setTextViewText(R.id.notification_player_album, track.Album);
+    /**
+     * An immutable snapshot of the player state, published by the player
+     * thread for the query methods.
+     */
+    private static class Snapshot
+    {
+        final PlayerState m_state;
+        final AudioTrack  m_track;
+        final boolean     m_repeat;
+        final boolean     m_shuffle;
+        final int         m_timecode;
+        final long        m_timecodeTime;
+        final int         m_crossfadeMillis;
+
+        Snapshot()
+        {
+            this(PlayerState.Stopped, null, false, false, 0, 0);
+        }
 
-        view.setImageViewResource(R.id.notification_player_playpause, m_playerState == PlayerState.Playing ? R.drawable.ic_player_pause_minimal : R.drawable.ic_player_play_minimal);
+        Snapshot(PlayerState state, AudioTrack track, boolean repeat, boolean shuffle, int timecode, int crossfadeMillis)
+        {
+            m_state           = state;
+            m_track           = track;
+            m_repeat          = repeat;
+            m_shuffle         = shuffle;
+            m_timecode        = timecode;
+            m_timecodeTime    = SystemClock.uptimeMillis();
+            m_crossfadeMillis = crossfadeMillis;
+        }
 
-        if (track.CoverArt != null)
+        /**
+         * Copies a snapshot with a new timecode.
+         */
+        Snapshot(Snapshot other, int timecode)
         {
-            view.setViewPadding(R.id.notification_player_artwork, 0, 0, 0, 0);
-            view.setImageViewUri(R.id.notification_player_artwork, track.CoverArt);
+            this(other.m_state, other.m_track, other.m_repeat, other.m_shuffle, timecode, other.m_crossfadeMillis);
         }
-        else
+    }
+
+    /**
+     * A request to play a track of a playlist.
+     */
+    private static class TrackSelection
+    {
+        final Playlist m_playlist;
+        final int      m_position;
+        final long     m_requestTime;
+
+        TrackSelection(Playlist playlist, int position, long requestTime)
+        {
+            m_playlist    = playlist;
+            m_position    = position;
+            m_requestTime = requestTime;
+        }
+    }
+
+    /**
+     * Ramps the volume of a player relative to the service volume, so a fade
+     * is ducked along with everything else.
+     */
+    private class PlayerVolume implements VolumeRampScheduler.VolumeTarget
+    {
+        private final MediaPlayer m_target;
+
+        PlayerVolume(MediaPlayer player)
+        {
+            m_target = player;
+        }
+
+        @Override
+        public void setVolume(float volume)
         {
-            view.setImageViewResource(R.id.notification_player_artwork, R.drawable.ic_album_placeholder_100);
+            float scaled = volume * m_volume;
+            m_target.setVolume(scaled, scaled);
         }
     }
 
@@ -514,8 +1377,7 @@ public class MediaService extends Service
 
     /**
      * Broadcast receiver that handles various custom transport controls and
-     * headphone removal broadcasts. This class directly alters the service
-     * state.
+     * headphone removal broadcasts. Commands are queued for the player thread.
      */
     private class NotificationBroadcastReceiver extends BroadcastReceiver
     {
@@ -529,23 +1391,13 @@ public class MediaService extends Service
                 previousTrack();
                 break;
             case ACTION_PLAY_PAUSE:
-                if (m_playerState == PlayerState.Playing)
-                {
-                    pause();
-                }
-                else
-                {
-                    play();
-                }
+                m_playerHandler.sendEmptyMessage(CMD_PLAY_PAUSE);
                 break;
             case ACTION_NEXT:
                 nextTrack();
                 break;
             case AudioManager.ACTION_AUDIO_BECOMING_NOISY:
-                if (m_playerState == PlayerState.Playing)
-                {
-                    pause();
-                }
+                pause();
                 break;
             }
         }
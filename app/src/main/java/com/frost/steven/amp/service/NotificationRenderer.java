@@ -0,0 +1,259 @@
+package com.frost.steven.amp.service;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.v7.app.NotificationCompat;
+import android.widget.RemoteViews;
+
+import com.frost.steven.amp.R;
+import com.frost.steven.amp.model.AudioTrack;
+import com.frost.steven.amp.ui.PlayerActivity;
+
+/**
+ * Publishes the playback notification for the media service.
+ *
+ * Every notification is a binder call to the system UI, which has to inflate
+ * and lay out both remote views again. The renderer only publishes content
+ * that differs from the last notification it published, and publishes at
+ * most once per interval, so a burst of changes such as skipping through
+ * tracks results in a single notification with the latest content. The
+ * pending intents for the notification never change and are created once.
+ *
+ * The renderer must only be used from the thread of the handler it is given.
+ */
+class NotificationRenderer
+{
+    private final Context             m_context;
+    private final NotificationManager m_notificationManager;
+    private final Handler             m_handler;
+    private final int                 m_notificationId;
+    private final long                m_intervalMillis;
+
+    private final PendingIntent m_contentIntent;
+    private final PendingIntent m_previousIntent;
+    private final PendingIntent m_playPauseIntent;
+    private final PendingIntent m_nextIntent;
+
+    private final Runnable m_publishRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            publish();
+        }
+    };
+
+    private Content      m_pending     = null;
+    private Content      m_published   = null;
+    private long         m_publishTime = 0;
+    private volatile int m_numPublished;
+    private volatile int m_numSkipped;
+
+    /**
+     * Constructor
+     *
+     * @param context        The service that owns the notification
+     * @param handler        The handler that updates are published on
+     * @param notificationId The ID of the notification
+     * @param intervalMillis The minimum time between two notifications
+     */
+    NotificationRenderer(Context context, Handler handler, int notificationId, long intervalMillis)
+    {
+        m_context             = context;
+        m_notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        m_handler             = handler;
+        m_notificationId      = notificationId;
+        m_intervalMillis      = intervalMillis;
+
+        Intent intent = new Intent(context, PlayerActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        m_contentIntent   = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        m_previousIntent  = PendingIntent.getBroadcast(context, 0, new Intent(MediaService.ACTION_PREVIOUS), 0);
+        m_playPauseIntent = PendingIntent.getBroadcast(context, 0, new Intent(MediaService.ACTION_PLAY_PAUSE), 0);
+        m_nextIntent      = PendingIntent.getBroadcast(context, 0, new Intent(MediaService.ACTION_NEXT), 0);
+    }
+
+    /**
+     * Requests that the notification shows the given content. The content is
+     * published once the interval since the last notification has passed,
+     * unless it is replaced by another request first.
+     *
+     * @param track          The current track
+     * @param playing        True if the track is playing
+     * @param artworkAlbumId The album that the artwork belongs to, or
+     *                       `BitmapResolver.NO_ARTWORK`
+     * @param artwork        The scaled album artwork, or null for the
+     *                       placeholder
+     */
+    public void update(AudioTrack track, boolean playing, long artworkAlbumId, @Nullable Bitmap artwork)
+    {
+        m_pending = new Content(track, playing, artworkAlbumId, artwork);
+
+        m_handler.removeCallbacks(m_publishRunnable);
+        long delay = m_publishTime + m_intervalMillis - SystemClock.uptimeMillis();
+        m_handler.postDelayed(m_publishRunnable, Math.max(delay, 0));
+    }
+
+    /**
+     * Cancels the notification and any update that hasn't been published.
+     */
+    public void cancel()
+    {
+        m_handler.removeCallbacks(m_publishRunnable);
+        m_notificationManager.cancel(m_notificationId);
+        m_pending = null;
+        m_published = null;
+    }
+
+    /**
+     * @return The number of notifications that have been published
+     */
+    public int getNumPublished()
+    {
+        return m_numPublished;
+    }
+
+    /**
+     * @return The number of updates that were dropped because they matched
+     *         the last notification
+     */
+    public int getNumSkipped()
+    {
+        return m_numSkipped;
+    }
+
+    private void publish()
+    {
+        Content content = m_pending;
+        m_pending = null;
+        if (content == null)
+        {
+            return;
+        }
+
+        if (content.isVisiblySameAs(m_published))
+        {
+            ++m_numSkipped;
+            return;
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(m_context);
+        builder.setContentIntent(m_contentIntent);
+        builder.setSmallIcon(R.drawable.ic_notification);
+        builder.setAutoCancel(false);
+        builder.setOngoing(content.m_playing);
+
+        // The ticker is only shown for a new track
+        if (m_published == null || m_published.m_track.getId() != content.m_track.getId())
+        {
+            builder.setTicker(m_context.getResources().getString(R.string.notification_now_playing).replace("{0}", content.m_track.getTitle()));
+        }
+
+        Notification notification = builder.build();
+        notification.priority = Notification.PRIORITY_MAX;
+        if (Build.VERSION.SDK_INT >= 21)
+        {
+            notification.visibility = Notification.VISIBILITY_PUBLIC;
+        }
+
+        RemoteViews contentView = new RemoteViews(m_context.getPackageName(), R.layout.notification_player);
+        updateRemoteViewElements(contentView, content);
+        notification.contentView = contentView;
+
+        if (Build.VERSION.SDK_INT >= 16)
+        {
+            RemoteViews expandedView = new RemoteViews(m_context.getPackageName(), R.layout.notification_player_expanded);
+            updateRemoteViewElements(expandedView, content);
+            notification.bigContentView = expandedView;
+        }
+
+        m_notificationManager.notify(m_notificationId, notification);
+        m_published = content;
+        m_publishTime = SystemClock.uptimeMillis();
+        ++m_numPublished;
+    }
+
+    /**
+     * Updates remote UI elements in the given remote view. This is for use
+     * with the two types of notification available as they share the same
+     * IDs.
+     *
+     * @param view    the remote view to update.
+     * @param content the content to show
+     */
+    private void updateRemoteViewElements(RemoteViews view, Content content)
+    {
+        AudioTrack track = content.m_track;
+
+        view.setOnClickPendingIntent(R.id.notification_player_prev, m_previousIntent);
+        view.setOnClickPendingIntent(R.id.notification_player_playpause, m_playPauseIntent);
+        view.setOnClickPendingIntent(R.id.notification_player_next, m_nextIntent);
+
+        view.setTextViewText(R.id.notification_player_title, track.getTitle());
+        view.setTextViewText(R.id.notification_player_artist, track.getArtist());
+        view.setTextViewText(R.id.notification_player_album, track.getAlbum());
+
+        view.setImageViewResource(R.id.notification_player_playpause, content.m_playing ? R.drawable.ic_player_pause_minimal : R.drawable.ic_player_play_minimal);
+
+        if (content.m_artwork != null)
+        {
+            view.setViewPadding(R.id.notification_player_artwork, 0, 0, 0, 0);
+            view.setImageViewBitmap(R.id.notification_player_artwork, content.m_artwork);
+        }
+        else
+        {
+            view.setImageViewResource(R.id.notification_player_artwork, R.drawable.ic_album_placeholder_100);
+        }
+    }
+
+    /**
+     * The content of a notification.
+     */
+    private static class Content
+    {
+        final AudioTrack m_track;
+        final boolean    m_playing;
+        final long       m_artworkAlbumId;
+        final Bitmap     m_artwork;
+
+        Content(AudioTrack track, boolean playing, long artworkAlbumId, Bitmap artwork)
+        {
+            m_track          = track;
+            m_playing        = playing;
+            m_artworkAlbumId = artworkAlbumId;
+            m_artwork        = artwork;
+        }
+
+        /**
+         * Artwork bitmaps are reused for later albums, so artwork is compared
+         * by album rather than by bitmap.
+         *
+         * @return true if a notification of this content would look the same
+         *         as one of the other content
+         */
+        boolean isVisiblySameAs(@Nullable Content other)
+        {
+            return other != null &&
+                m_playing == other.m_playing &&
+                m_artworkAlbumId == other.m_artworkAlbumId &&
+                (m_artwork == null) == (other.m_artwork == null) &&
+                equals(m_track.getTitle(), other.m_track.getTitle()) &&
+                equals(m_track.getArtist(), other.m_track.getArtist()) &&
+                equals(m_track.getAlbum(), other.m_track.getAlbum());
+        }
+
+        private static boolean equals(Object lhs, Object rhs)
+        {
+            return lhs == null ? rhs == null : lhs.equals(rhs);
+        }
+    }
+}
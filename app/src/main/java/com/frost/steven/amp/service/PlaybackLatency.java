@@ -0,0 +1,237 @@
+package com.frost.steven.amp.service;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency histograms for starting playback of a track, broken down by the
+ * phases of a start and grouped by file type and storage volume, so slow
+ * starts can be traced to a phase and a kind of storage.
+ *
+ * Each histogram has logarithmic buckets four to an octave, so percentiles
+ * are accurate to within about 20% and a histogram is a fixed size however
+ * many starts it has recorded.
+ */
+public class PlaybackLatency
+{
+    public enum Phase
+    {
+        /** Requesting audio focus */
+        AudioFocus,
+        /** Resetting the player */
+        Reset,
+        /** Opening the track */
+        SetDataSource,
+        /** From `prepareAsync` until the player is prepared */
+        Prepare,
+        /** From the request to play until the player is prepared */
+        Total
+    }
+
+    private static final int BUCKETS_PER_OCTAVE = 4;
+    private static final int NUM_BUCKETS        = 30 * BUCKETS_PER_OCTAVE; // Up to 2^30us
+
+    private final Map<String, Histogram[]> m_groups = new TreeMap<>();
+
+    /**
+     * Gets the group that starts of a track are recorded under, made of the
+     * file extension and the storage volume of the track.
+     *
+     * @param path The path of the track
+     *
+     * @return The group, such as "flac /storage/1234-ABCD"
+     */
+    public static String getGroup(String path)
+    {
+        if (path == null)
+        {
+            return "unknown";
+        }
+
+        String type = "none";
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf('/'))
+        {
+            type = path.substring(dot + 1).toLowerCase(Locale.US);
+        }
+
+        // The volume is the mount point, which is the first two directories
+        // of the path on every layout we support
+        String volume = path;
+        int slash = path.indexOf('/', 1);
+        if (slash > 0)
+        {
+            int end = path.indexOf('/', slash + 1);
+            volume = end > 0 ? path.substring(0, end) : path;
+        }
+        return type + " " + volume;
+    }
+
+    /**
+     * Records how long a phase of starting a track took.
+     *
+     * @param group The group of the track, from `getGroup`
+     * @param phase The phase that was timed
+     * @param nanos The time taken in nanoseconds
+     */
+    public synchronized void record(String group, Phase phase, long nanos)
+    {
+        Histogram[] histograms = m_groups.get(group);
+        if (histograms == null)
+        {
+            histograms = new Histogram[Phase.values().length];
+            m_groups.put(group, histograms);
+        }
+
+        int index = phase.ordinal();
+        if (histograms[index] == null)
+        {
+            histograms[index] = new Histogram();
+        }
+        histograms[index].add(nanos / 1000);
+    }
+
+    /**
+     * @return The groups that have recorded at least one start
+     */
+    public synchronized List<String> getGroups()
+    {
+        return new ArrayList<>(m_groups.keySet());
+    }
+
+    /**
+     * Gets the number of times a phase has been recorded for a group.
+     *
+     * @param group The group of tracks
+     * @param phase The phase of starting a track
+     *
+     * @return The number of samples
+     */
+    public synchronized int getCount(String group, Phase phase)
+    {
+        Histogram histogram = getHistogram(group, phase);
+        return histogram == null ? 0 : histogram.m_count;
+    }
+
+    /**
+     * Gets a percentile of the time taken by a phase for a group.
+     *
+     * @param group      The group of tracks
+     * @param phase      The phase of starting a track
+     * @param percentile The percentile, from 0 to 100
+     *
+     * @return The latency in microseconds, or -1 if nothing was recorded.
+     */
+    public synchronized long getPercentile(String group, Phase phase, double percentile)
+    {
+        Histogram histogram = getHistogram(group, phase);
+        return histogram == null ? -1 : histogram.getPercentile(percentile);
+    }
+
+    /**
+     * Clears every histogram.
+     */
+    public synchronized void reset()
+    {
+        m_groups.clear();
+    }
+
+    /**
+     * Writes the p50, p95 and p99 latencies of each phase of each group, in
+     * milliseconds.
+     *
+     * @param writer The writer to print to
+     */
+    public synchronized void dump(PrintWriter writer)
+    {
+        writer.println("Playback start latency (ms):");
+        if (m_groups.isEmpty())
+        {
+            writer.println("  No tracks started");
+            return;
+        }
+
+        for (Map.Entry<String, Histogram[]> entry : m_groups.entrySet())
+        {
+            writer.println("  " + entry.getKey());
+            for (Phase phase : Phase.values())
+            {
+                Histogram histogram = entry.getValue()[phase.ordinal()];
+                if (histogram == null)
+                {
+                    continue;
+                }
+
+                writer.println(String.format(Locale.US, "    %-13s n=%-5d p50=%-8.1f p95=%-8.1f p99=%-8.1f max=%.1f",
+                    phase.name(),
+                    histogram.m_count,
+                    histogram.getPercentile(50) / 1000.0,
+                    histogram.getPercentile(95) / 1000.0,
+                    histogram.getPercentile(99) / 1000.0,
+                    histogram.m_max / 1000.0));
+            }
+        }
+    }
+
+    private Histogram getHistogram(String group, Phase phase)
+    {
+        Histogram[] histograms = m_groups.get(group);
+        return histograms == null ? null : histograms[phase.ordinal()];
+    }
+
+    /**
+     * Counts of latencies in logarithmic buckets, in microseconds.
+     */
+    private static class Histogram
+    {
+        final int[] m_buckets = new int[NUM_BUCKETS];
+        int         m_count;
+        long        m_max;
+
+        void add(long micros)
+        {
+            ++m_buckets[getBucket(micros)];
+            ++m_count;
+            m_max = Math.max(m_max, micros);
+        }
+
+        /**
+         * @return The upper bound of the bucket holding the percentile, or
+         *         the largest recorded latency if that is smaller
+         */
+        long getPercentile(double percentile)
+        {
+            long rank = (long)Math.ceil(m_count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i)
+            {
+                seen += m_buckets[i];
+                if (seen >= rank && seen > 0)
+                {
+                    return Math.min(getUpperBound(i), m_max);
+                }
+            }
+            return m_max;
+        }
+
+        private static int getBucket(long micros)
+        {
+            if (micros <= 1)
+            {
+                return 0;
+            }
+
+            int bucket = (int)Math.ceil(BUCKETS_PER_OCTAVE * Math.log(micros) / Math.log(2));
+            return Math.min(bucket, NUM_BUCKETS - 1);
+        }
+
+        private static long getUpperBound(int bucket)
+        {
+            return (long)Math.ceil(Math.pow(2, (double)bucket / BUCKETS_PER_OCTAVE));
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.frost.steven.amp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives volume ramps, such as the two halves of a crossfade, from a single
+ * background thread with a fixed tick. Each tick sets the volume of every
+ * active ramp from the time elapsed since the ramp started rather than by
+ * stepping the previous volume, so a late tick never leaves a ramp behind.
+ * Ticks are scheduled against absolute deadlines, so the time taken by a tick
+ * and any oversleeping don't accumulate, and ticks that were missed entirely
+ * are skipped rather than run back to back.
+ *
+ * Ramps interpolate power rather than amplitude. A ramp from 1 to 0 and a
+ * ramp from 0 to 1 over the same window therefore sum to a constant power,
+ * so a crossfade doesn't dip in loudness half way through.
+ *
+ * The scheduler doesn't depend on Android. Its thread is only started by
+ * `startThread`, so unit tests can call `tick` themselves against a fake
+ * clock and volume targets.
+ */
+public class VolumeRampScheduler
+{
+    /** Clock backed by `System.nanoTime` */
+    public static final Clock SYSTEM_CLOCK = new Clock()
+    {
+        @Override
+        public long uptimeMillis()
+        {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException
+        {
+            Thread.sleep(millis);
+        }
+    };
+
+    private final Clock      m_clock;
+    private final long       m_tickMillis;
+    private final List<Ramp> m_ramps;
+
+    private Thread  m_thread;
+    private long    m_nextTick;
+    private int     m_numTicks;
+    private boolean m_shutdown;
+
+    /**
+     * Constructor
+     *
+     * @param clock      The clock that ramps are timed against
+     * @param tickMillis The interval between volume updates, in milliseconds
+     */
+    public VolumeRampScheduler(Clock clock, long tickMillis)
+    {
+        if (tickMillis <= 0)
+        {
+            throw new IllegalArgumentException("tickMillis <= 0");
+        }
+
+        m_clock      = clock;
+        m_tickMillis = tickMillis;
+        m_ramps      = new ArrayList<>();
+    }
+
+    /**
+     * Starts ramping the volume of a target. The target is set to the start
+     * volume straight away, and is set to exactly the end volume by the last
+     * tick of the ramp.
+     *
+     * @param target         The target to set the volume of
+     * @param from           The volume at the start of the ramp, from 0 to 1
+     * @param to             The volume at the end of the ramp, from 0 to 1
+     * @param durationMillis The length of the ramp in milliseconds
+     * @param listener       Notified on the scheduler thread once the ramp
+     *                       has finished, may be null
+     *
+     * @return The ramp, which can be passed to `cancel`
+     */
+    public synchronized Ramp start(VolumeTarget target, float from, float to, long durationMillis, OnRampFinishedListener listener)
+    {
+        if (m_shutdown)
+        {
+            throw new IllegalStateException("The scheduler has been shut down.");
+        }
+
+        Ramp ramp = new Ramp(target, from, to, m_clock.uptimeMillis(), Math.max(durationMillis, 0), listener);
+        target.setVolume(from);
+
+        // The first ramp starts a new run of ticks
+        if (m_ramps.isEmpty())
+        {
+            m_nextTick = ramp.m_startTime + m_tickMillis;
+        }
+        m_ramps.add(ramp);
+
+        notifyAll();
+        return ramp;
+    }
+
+    /**
+     * Stops a ramp, leaving its target at its current volume. The target is
+     * not set again once this returns.
+     *
+     * @param ramp The ramp to cancel, may be null
+     */
+    public synchronized void cancel(Ramp ramp)
+    {
+        if (ramp != null)
+        {
+            m_ramps.remove(ramp);
+        }
+    }
+
+    /**
+     * Cancels every ramp and stops the scheduler thread.
+     */
+    public void shutdown()
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            m_shutdown = true;
+            m_ramps.clear();
+            thread = m_thread;
+            notifyAll();
+        }
+
+        if (thread != null)
+        {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return The number of ticks that have updated at least one ramp
+     */
+    public synchronized int getNumTicks()
+    {
+        return m_numTicks;
+    }
+
+    /**
+     * Updates every ramp to the current time, if a tick is due. Finished
+     * ramps are removed and their listeners notified.
+     *
+     * @return The time until the next tick is due in milliseconds, or -1 if
+     *         there are no ramps left.
+     */
+    long tick()
+    {
+        List<Ramp> finished = null;
+        long delay;
+        synchronized (this)
+        {
+            if (m_ramps.isEmpty())
+            {
+                return -1;
+            }
+
+            long now = m_clock.uptimeMillis();
+            if (now >= m_nextTick)
+            {
+                ++m_numTicks;
+                for (int i = m_ramps.size() - 1; i >= 0; --i)
+                {
+                    Ramp ramp = m_ramps.get(i);
+                    if (ramp.update(now))
+                    {
+                        m_ramps.remove(i);
+                        if (finished == null)
+                        {
+                            finished = new ArrayList<>();
+                        }
+                        finished.add(ramp);
+                    }
+                }
+
+                // Deadlines stay on the original grid, skipping any that
+                // have already passed
+                long missed = (now - m_nextTick) / m_tickMillis;
+                m_nextTick += (missed + 1) * m_tickMillis;
+            }
+            delay = m_ramps.isEmpty() ? -1 : m_nextTick - now;
+        }
+
+        // Listeners are called outside of the lock so they can start or
+        // cancel other ramps
+        if (finished != null)
+        {
+            for (Ramp ramp : finished)
+            {
+                if (ramp.m_listener != null)
+                {
+                    ramp.m_listener.onRampFinished(ramp);
+                }
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Starts the thread that ticks the scheduler. The thread sleeps while
+     * there are no ramps.
+     */
+    public synchronized void startThread()
+    {
+        if (m_thread != null || m_shutdown)
+        {
+            return;
+        }
+
+        m_thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runLoop();
+            }
+        }, "VolumeRampScheduler");
+        m_thread.setPriority(Thread.MAX_PRIORITY);
+        m_thread.start();
+    }
+
+    private void runLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                long delay = tick();
+                synchronized (this)
+                {
+                    if (m_shutdown)
+                    {
+                        return;
+                    }
+                    if (delay < 0 && m_ramps.isEmpty())
+                    {
+                        wait();
+                        continue;
+                    }
+                }
+
+                if (delay > 0)
+                {
+                    m_clock.sleep(delay);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // Shut down
+        }
+    }
+
+    /**
+     * A source of time for the scheduler.
+     */
+    public interface Clock
+    {
+        /**
+         * @return A monotonic time in milliseconds
+         */
+        long uptimeMillis();
+
+        /**
+         * Blocks the calling thread for the given time.
+         *
+         * @param millis The time to sleep for in milliseconds
+         */
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * Something with a volume that can be ramped, such as a media player.
+     */
+    public interface VolumeTarget
+    {
+        /**
+         * Sets the volume of the target. This is called on the scheduler
+         * thread.
+         *
+         * @param volume The volume, from 0 to 1
+         */
+        void setVolume(float volume);
+    }
+
+    public interface OnRampFinishedListener
+    {
+        void onRampFinished(Ramp ramp);
+    }
+
+    /**
+     * A single volume ramp.
+     */
+    public static class Ramp
+    {
+        private final VolumeTarget           m_target;
+        private final float                  m_fromPower;
+        private final float                  m_toPower;
+        private final float                  m_to;
+        private final long                   m_startTime;
+        private final long                   m_duration;
+        private final OnRampFinishedListener m_listener;
+
+        private float m_volume;
+
+        Ramp(VolumeTarget target, float from, float to, long startTime, long duration, OnRampFinishedListener listener)
+        {
+            m_target    = target;
+            m_fromPower = from * from;
+            m_toPower   = to * to;
+            m_to        = to;
+            m_startTime = startTime;
+            m_duration  = duration;
+            m_listener  = listener;
+            m_volume    = from;
+        }
+
+        /**
+         * @return The volume the target was last set to
+         */
+        public float getVolume()
+        {
+            return m_volume;
+        }
+
+        /**
+         * Sets the target to its volume at the given time. The target is
+         * only set if its volume has changed.
+         *
+         * @return True if the ramp has finished
+         */
+        boolean update(long now)
+        {
+            long elapsed = now - m_startTime;
+
+            float volume;
+            if (elapsed >= m_duration)
+            {
+                volume = m_to;
+            }
+            else
+            {
+                float t = (float)elapsed / m_duration;
+                volume = (float)Math.sqrt(m_fromPower + (m_toPower - m_fromPower) * t);
+            }
+
+            if (volume != m_volume)
+            {
+                m_volume = volume;
+                m_target.setVolume(volume);
+            }
+            return elapsed >= m_duration;
+        }
+    }
+}
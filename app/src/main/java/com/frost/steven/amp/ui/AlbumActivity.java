@@ -65,10 +65,10 @@ public class AlbumActivity extends MediaServiceActivity implements DBPlaylistMan
         view.setAdapter(songRecyclerViewAdapter);
 
         // Bitmap Provider
-        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), getContentResolver(), getResources());
+        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), this);
         BitmapResolver bitmapResolver = sf.getBitmapProvider();
 
-        bitmapResolver.makeRequest((ImageView)findViewById(R.id.activity_album_artwork), m_album.Artwork, 500);
+        bitmapResolver.makeRequest((ImageView)findViewById(R.id.activity_album_artwork), m_album.Artwork != null ? m_album.AlbumID : BitmapResolver.NO_ARTWORK, 500, BitmapResolver.PRIORITY_HIGH);
 
         ActionBar actionBar = getSupportActionBar();
         if (actionBar != null)
@@ -125,7 +125,7 @@ public class AlbumActivity extends MediaServiceActivity implements DBPlaylistMan
         // Album playlist
         Playlist playlist = new Playlist();
         m_playlistTask = new Playlist.ListCreator(
-            getContentResolver(),
+            this,
             playlist,
             new String[] { MediaStore.Audio.Media.ALBUM_ID + " == " + m_album.AlbumID },
             MediaStore.Audio.Media.TRACK + " ASC"
@@ -1,7 +1,6 @@
 package com.frost.steven.amp.ui;
 
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -16,8 +15,9 @@ import android.widget.TextView;
 import com.frost.steven.amp.R;
 import com.frost.steven.amp.helpers.BitmapResolver;
 import com.frost.steven.amp.model.Album;
+import com.frost.steven.amp.model.LibraryScanner;
+import com.frost.steven.amp.ui.listeners.ArtworkPrefetchListener;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class AlbumsFragment extends Fragment
@@ -27,8 +27,6 @@ public class AlbumsFragment extends Fragment
     private LibraryActivity m_activity;
 
     private RecyclerViewAdapter m_recyclerViewAdapter = null;
-    private Album.ListCreator   m_albumListCreatorTask = null;
-    private List<Album>         m_albums;
 
 
     public static AlbumsFragment getInstance()
@@ -44,16 +42,6 @@ public class AlbumsFragment extends Fragment
         super.onCreate(savedInstanceState);
 
         m_activity = (LibraryActivity)getActivity();
-
-        m_albums = new ArrayList<>();
-        m_recyclerViewAdapter = new RecyclerViewAdapter(m_albums);
-
-        m_albumListCreatorTask = new Album.ListCreator(
-            getActivity().getContentResolver(),
-            m_albums
-        );
-        m_albumListCreatorTask.setOnListCompletedListener(m_recyclerViewAdapter);
-        m_albumListCreatorTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     @Override
@@ -61,6 +49,14 @@ public class AlbumsFragment extends Fragment
     {
         RecyclerView view = (RecyclerView)inflater.inflate(R.layout.fragment_albums, container, false);
 
+        // Albums are read by the library scan that fills the master playlist
+        if (m_recyclerViewAdapter == null)
+        {
+            LibraryScanner libraryScanner = m_activity.getMasterPlaylistTask();
+            m_recyclerViewAdapter = new RecyclerViewAdapter(libraryScanner.getAlbums());
+            libraryScanner.addAlbumsListener(m_recyclerViewAdapter);
+        }
+
         view.setLayoutManager(new LinearLayoutManager(view.getContext()));
         view.setAdapter(m_recyclerViewAdapter);
 
@@ -81,14 +77,16 @@ public class AlbumsFragment extends Fragment
 
     class RecyclerViewAdapter
             extends RecyclerView.Adapter<RecyclerViewAdapter.ViewHolder>
-            implements Album.ListCreator.OnListCompletedListener
+            implements LibraryScanner.OnAlbumsChangedListener, ArtworkPrefetchListener.ArtworkSource
     {
-        private List<Album> m_albums;
+        private static final int ARTWORK_SIZE = 100;
+
+        private List<Album>             m_albums;
+        private ArtworkPrefetchListener m_prefetchListener;
 
         @Override
-        public void onListCompleted()
+        public void onAlbumsChanged()
         {
-            m_albumListCreatorTask = null;
             notifyDataSetChanged();
         }
 
@@ -133,7 +131,9 @@ public class AlbumsFragment extends Fragment
             Album album = getValueAt(position);
 
             holder.m_title.setText(album.Title);
-            holder.m_artist.setText(album.Artist);
+            holder.m_artist.setText(getResources().getQuantityString(
+                R.plurals.album_details, album.NumTracks, album.Artist, album.NumTracks
+            ));
 
             holder.m_view.setOnClickListener(new View.OnClickListener()
             {
@@ -151,7 +151,7 @@ public class AlbumsFragment extends Fragment
             BitmapResolver resolver = m_activity.getBitmapProvider();
             if (resolver != null)
             {
-                resolver.makeRequest(holder.m_artwork, album.Artwork, 100);
+                resolver.makeRequest(holder.m_artwork, getArtworkId(position), ARTWORK_SIZE);
             }
         }
 
@@ -164,5 +164,37 @@ public class AlbumsFragment extends Fragment
             }
             return 0;
         }
+
+        @Override
+        public void onAttachedToRecyclerView(RecyclerView recyclerView)
+        {
+            super.onAttachedToRecyclerView(recyclerView);
+
+            BitmapResolver resolver = m_activity.getBitmapProvider();
+            if (resolver != null)
+            {
+                m_prefetchListener = new ArtworkPrefetchListener(resolver, this, ARTWORK_SIZE);
+                recyclerView.addOnScrollListener(m_prefetchListener);
+            }
+        }
+
+        @Override
+        public void onDetachedFromRecyclerView(RecyclerView recyclerView)
+        {
+            if (m_prefetchListener != null)
+            {
+                recyclerView.removeOnScrollListener(m_prefetchListener);
+                m_prefetchListener.stop();
+                m_prefetchListener = null;
+            }
+            super.onDetachedFromRecyclerView(recyclerView);
+        }
+
+        @Override
+        public long getArtworkId(int position)
+        {
+            Album album = getValueAt(position);
+            return album.Artwork != null ? album.AlbumID : BitmapResolver.NO_ARTWORK;
+        }
     }
 }
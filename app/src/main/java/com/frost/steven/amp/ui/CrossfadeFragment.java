@@ -0,0 +1,55 @@
+package com.frost.steven.amp.ui;
+
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.v7.app.AlertDialog;
+
+import com.frost.steven.amp.R;
+import com.frost.steven.amp.service.MediaService;
+
+/**
+ * Lets the user pick how long tracks are crossfaded for. The choice is stored
+ * in the default shared preferences, which the media service listens to.
+ */
+public class CrossfadeFragment extends DialogFragment
+{
+    private SharedPreferences m_preferences;
+    private int[]             m_durations;
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState)
+    {
+        m_preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        m_durations = getResources().getIntArray(R.array.crossfade_durations);
+
+        int duration = m_preferences.getInt(MediaService.PREF_CROSSFADE_DURATION, 0);
+        int checked = 0;
+        for (int i = 0; i < m_durations.length; ++i)
+        {
+            if (m_durations[i] == duration)
+            {
+                checked = i;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(getResources().getString(R.string.crossfade_title));
+        builder.setSingleChoiceItems(R.array.crossfade_labels, checked, new DurationClickListener());
+        builder.setNegativeButton(R.string.playlist_details_cancel, null);
+        return builder.create();
+    }
+
+    private class DurationClickListener implements DialogInterface.OnClickListener
+    {
+        @Override
+        public void onClick(DialogInterface dialog, int which)
+        {
+            m_preferences.edit().putInt(MediaService.PREF_CROSSFADE_DURATION, m_durations[which]).apply();
+            dialog.dismiss();
+        }
+    }
+}
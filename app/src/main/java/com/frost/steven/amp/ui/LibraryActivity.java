@@ -16,12 +16,21 @@ import android.view.Menu;
 import android.view.MenuItem;
 
 import com.frost.steven.amp.helpers.BitmapResolver;
+import com.frost.steven.amp.helpers.LibrarySnapshot;
 import com.frost.steven.amp.model.DBPlaylist;
 import com.frost.steven.amp.helpers.DBPlaylistManager;
 import com.frost.steven.amp.R;
+import com.frost.steven.amp.model.AudioTrack;
+import com.frost.steven.amp.model.LibraryScanner;
+import com.frost.steven.amp.model.LibrarySync;
 import com.frost.steven.amp.model.Playlist;
 import com.frost.steven.amp.service.MediaService;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+
 /**
  * This is the main activity that the user lands on when the launch the
  * application. It holds three tabs; Albums, Playlists and Songs. Each tab
@@ -30,9 +39,12 @@ import com.frost.steven.amp.service.MediaService;
  */
 public class LibraryActivity extends MediaServiceActivity implements DBPlaylistManager.Container
 {
+    private static final String SNAPSHOT_FILENAME = "library.snapshot";
+
     private BitmapResolver m_bitmapResolver;
     private DBPlaylistManager    m_playlistManager;
-    private Playlist.ListCreator m_masterPlaylistTask;
+    private LibraryScanner       m_masterPlaylistTask;
+    private LibrarySync          m_librarySync;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -58,11 +70,13 @@ public class LibraryActivity extends MediaServiceActivity implements DBPlaylistM
         // Tabs
         TabLayout tabLayout = (TabLayout)findViewById(R.id.tabs);
         tabLayout.setupWithViewPager(viewPager);
+    }
 
-        // TODO: Attach a content observer to listen for MediaStore changes.
-        //       This will require changes to many components to deal with all the edge cases.
-        //       There may be some noise around this as it appears the observer is notified when
-        //       tracks are simply accessed.
+    @Override
+    protected void onDestroy()
+    {
+        m_librarySync.stop();
+        super.onDestroy();
     }
 
     @Override
@@ -100,9 +114,25 @@ public class LibraryActivity extends MediaServiceActivity implements DBPlaylistM
             Intent intent = new Intent(this, PlayerActivity.class);
             startActivity(intent);
         }
+        else if (itemId == R.id.menu_library_crossfade)
+        {
+            new CrossfadeFragment().show(getFragmentManager(), "dialog-crossfade");
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Prints how the master playlist was delivered, such as the batch sizes
+     * and the time to the first visible track, for `adb shell dumpsys
+     * activity`.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args)
+    {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Library scan: " + m_masterPlaylistTask.getStatistics());
+    }
+
     @Override
     public void onBackPressed()
     {
@@ -120,25 +150,55 @@ public class LibraryActivity extends MediaServiceActivity implements DBPlaylistM
         return m_bitmapResolver;
     }
 
-    public Playlist.ListCreator getMasterPlaylistTask()
+    public LibraryScanner getMasterPlaylistTask()
     {
         return m_masterPlaylistTask;
     }
 
+    public LibrarySync getLibrarySync()
+    {
+        return m_librarySync;
+    }
+
     private void initActivityState()
     {
-        // Master playlist
+        // Master playlist and albums
+        LibrarySnapshot snapshot = new LibrarySnapshot(new File(getCacheDir(), SNAPSHOT_FILENAME));
         Playlist masterPlaylist = new Playlist();
-        m_masterPlaylistTask = new Playlist.ListCreator(
-            getContentResolver(),
+        m_masterPlaylistTask = new LibraryScanner(
+            this,
             masterPlaylist,
-            null,
-            MediaStore.Audio.Media.TITLE
+            MediaStore.Audio.Media.TITLE,
+            snapshot
         );
+        m_masterPlaylistTask.setParallelism(Runtime.getRuntime().availableProcessors());
         m_masterPlaylistTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
+        // Incremental library sync, started once the master playlist is complete
+        m_librarySync = new LibrarySync(this, masterPlaylist, AudioTrack.TITLE_ORDER, snapshot, m_masterPlaylistTask.getStringPool());
+        m_librarySync.addListener(new LibrarySync.OnLibraryChangedListener()
+        {
+            @Override
+            public void onLibraryChanged(List<AudioTrack> removedTracks, List<AudioTrack> addedTracks)
+            {
+                m_masterPlaylistTask.applyChanges(removedTracks, addedTracks);
+            }
+        });
+        m_masterPlaylistTask.addCompletionListener(new Playlist.ListCreator.CompletionListener()
+        {
+            @Override
+            public void onPlaylistCompleted()
+            {
+                m_librarySync.start(
+                    m_masterPlaylistTask.getMaxTrackId(),
+                    m_masterPlaylistTask.getMaxDateModified(),
+                    m_masterPlaylistTask.getMaxDateModifiedTrackId()
+                );
+            }
+        });
+
         // Bitmap Provider
-        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), getContentResolver(), getResources());
+        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), this);
         m_bitmapResolver = sf.getBitmapProvider();
     }
 
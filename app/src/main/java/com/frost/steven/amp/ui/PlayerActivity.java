@@ -52,7 +52,7 @@ public class PlayerActivity extends MediaServiceActivity
         seekBar.setOnSeekBarChangeListener(new SeekBarChangeListener());
 
         // Bitmap Provider
-        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), getContentResolver(), getResources());
+        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), this);
         m_bitmapResolver = sf.getBitmapProvider();
     }
 
@@ -134,18 +134,19 @@ public class PlayerActivity extends MediaServiceActivity
         ImageView albumArtLargeView = (ImageView) findViewById(R.id.player_large_albumart);
 
         // Adjust the visibility of placeholder views
-        albumArtLargePlaceholderView.setVisibility(newTrack.CoverArt != null ? View.GONE : View.VISIBLE);
-        albumArtLargeView.setVisibility(newTrack.CoverArt != null ? View.VISIBLE : View.GONE);
+        albumArtLargePlaceholderView.setVisibility(newTrack.getCoverArt() != null ? View.GONE : View.VISIBLE);
+        albumArtLargeView.setVisibility(newTrack.getCoverArt() != null ? View.VISIBLE : View.GONE);
 
         // Load the album bitmaps if needed
-        if (previousTrack == null || previousTrack.CoverArt == null || !previousTrack.CoverArt.equals(newTrack.CoverArt))
+        long artworkId = newTrack.hasCoverArt() ? newTrack.getAlbumId() : BitmapResolver.NO_ARTWORK;
+        if (previousTrack == null || !previousTrack.hasCoverArt() || previousTrack.getAlbumId() != artworkId)
         {
             ImageView albumArtView = (ImageView) findViewById(R.id.element_song_artwork);
-            m_bitmapResolver.makeRequest(albumArtView, newTrack.CoverArt, 100);
+            m_bitmapResolver.makeRequest(albumArtView, artworkId, 100);
 
-            if (newTrack.CoverArt != null)
+            if (newTrack.hasCoverArt())
             {
-                m_bitmapResolver.makeRequest(albumArtLargeView, newTrack.CoverArt, 500);
+                m_bitmapResolver.makeRequest(albumArtLargeView, artworkId, 500, BitmapResolver.PRIORITY_HIGH);
             }
             else
             {
@@ -154,15 +155,15 @@ public class PlayerActivity extends MediaServiceActivity
         }
 
         // Track title, artist and album
-        ((TextView)findViewById(R.id.element_song_title)).setText(newTrack.Title);
-        ((TextView)findViewById(R.id.element_song_artist)).setText(newTrack.Artist);
-        ((TextView)findViewById(R.id.element_song_album)).setText(newTrack.Album);
+        ((TextView)findViewById(R.id.element_song_title)).setText(newTrack.getTitle());
+        ((TextView)findViewById(R.id.element_song_artist)).setText(newTrack.getArtist());
+        ((TextView)findViewById(R.id.element_song_album)).setText(newTrack.getAlbum());
         (findViewById(R.id.element_song_duration)).setVisibility(View.GONE);
         (findViewById(R.id.element_song_menu)).setVisibility(View.GONE);
 
         // Static timecode views
         ((TextView)findViewById(R.id.player_track_duration)).setText(newTrack.getFormattedDuration());
-        ((SeekBar)findViewById(R.id.player_seek_bar)).setMax(newTrack.Duration);
+        ((SeekBar)findViewById(R.id.player_seek_bar)).setMax(newTrack.getDuration());
 
         // Transport control button states
         updatePlayButtonImage();
@@ -1,5 +1,6 @@
 package com.frost.steven.amp.ui;
 
+import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -10,18 +11,30 @@ import android.support.v7.widget.Toolbar;
 
 import com.frost.steven.amp.helpers.BitmapResolver;
 import com.frost.steven.amp.model.DBPlaylist;
-import com.frost.steven.amp.utils.ListenableArrayList;
+import com.frost.steven.amp.model.PagedTrackList;
+import com.frost.steven.amp.ui.adapters.PagedSongRecyclerViewAdapter;
 import com.frost.steven.amp.ui.listeners.MenuOnClickListener;
 import com.frost.steven.amp.R;
-import com.frost.steven.amp.ui.adapters.SongRecyclerViewAdapter;
 import com.frost.steven.amp.model.Playlist;
 
+/**
+ * Shows the members of a MediaStore playlist. The list is paged, so only the
+ * rows near the screen are held in memory. The full playlist is only built
+ * when a track is played, as the player needs every track.
+ */
 public class PlaylistActivity extends MediaServiceActivity
-        implements Playlist.ListCreator.CompletionListener, ListenableArrayList.OnCollectionChangedListener
+        implements PagedSongRecyclerViewAdapter.OnTrackClickListener, PagedTrackList.Listener, Playlist.ListCreator.CompletionListener
 {
-    private Playlist.ListCreator    m_playlistCreator;
-    private SongRecyclerViewAdapter m_songViewAdapter;
-    private BitmapResolver m_bitmapResolver;
+    private static final String s_orderBy = MediaStore.Audio.Playlists.Members.PLAY_ORDER + " ASC";
+
+    private DBPlaylist                   m_databasePlaylist;
+    private PagedTrackList               m_tracks;
+    private PagedSongRecyclerViewAdapter m_songViewAdapter;
+    private BitmapResolver               m_bitmapResolver;
+
+    private Playlist.ListCreator m_playlistCreator;
+    private boolean              m_playlistReady;
+    private long                 m_selectedTrackId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -34,39 +47,34 @@ public class PlaylistActivity extends MediaServiceActivity
 
         // Bundled DBPlaylist
         Bundle bundle = getIntent().getExtras();
-        DBPlaylist playlist = (DBPlaylist)bundle.get(PlaylistsFragment.BUNDLE_PARCEL_PLAYLIST);
+        m_databasePlaylist = (DBPlaylist)bundle.get(PlaylistsFragment.BUNDLE_PARCEL_PLAYLIST);
 
         // If we don't have a playlist we need to return
-        if (playlist == null)
+        if (m_databasePlaylist == null)
         {
             finish();
             return;
         }
 
         // Activity title
-        setTitle(playlist.Name);
+        setTitle(m_databasePlaylist.Name);
 
         // Playlist members, ordered by play order ascending
-        Playlist internalPlaylist = new Playlist();
-        m_playlistCreator = new Playlist.ListCreator(
-            getContentResolver(),
-            internalPlaylist,
-            null,
-            MediaStore.Audio.Playlists.Members.PLAY_ORDER + " ASC",
-            playlist.Id
-        );
-        m_playlistCreator.addCompletionListener(this);
-        m_playlistCreator.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        m_tracks = new PagedTrackList(this, null, s_orderBy, m_databasePlaylist.Id);
+        m_tracks.addListener(this);
 
         // Bitmap Provider
-        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), getContentResolver(), getResources());
+        StaticFragment sf = StaticFragment.getInstance(getSupportFragmentManager(), this);
         m_bitmapResolver = sf.getBitmapProvider();
 
-        m_songViewAdapter = new SongRecyclerViewAdapter(
-            m_playlistCreator,
+        m_songViewAdapter = new PagedSongRecyclerViewAdapter(
+            m_tracks,
             this,
-            new MenuOnClickListener.PlaylistSongListener.Factory(internalPlaylist, playlist), m_bitmapResolver
+            new MenuOnClickListener.PlaylistSongListener.Factory(m_tracks, m_databasePlaylist),
+            m_bitmapResolver,
+            this
         );
+        m_tracks.load();
 
         RecyclerView view = (RecyclerView)findViewById(R.id.content_playlist_recyclerview);
         view.setLayoutManager(new LinearLayoutManager(view.getContext()));
@@ -79,15 +87,64 @@ public class PlaylistActivity extends MediaServiceActivity
         }
     }
 
+    @Override
+    public void onTrackClick(int position)
+    {
+        if (!isMediaServiceBound())
+        {
+            return;
+        }
+
+        // The playable playlist is built on the first click and kept until
+        // the members of the playlist change
+        m_selectedTrackId = m_tracks.getTrackId(position);
+        if (m_playlistCreator == null)
+        {
+            m_playlistCreator = new Playlist.ListCreator(this, new Playlist(), null, s_orderBy, m_databasePlaylist.Id);
+            m_playlistCreator.addCompletionListener(this);
+            m_playlistCreator.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+        else if (m_playlistReady)
+        {
+            playSelectedTrack();
+        }
+    }
+
     @Override
     public void onPlaylistCompleted()
     {
-        m_playlistCreator.getPlaylist().attachPlaylistChangedListener(this);
+        m_playlistReady = true;
+        playSelectedTrack();
     }
 
     @Override
-    public void onPlaylistCollectionChanged(ListenableArrayList collection)
+    public void onTrackListReset()
     {
-        m_songViewAdapter.notifyDataSetChanged();
+        if (m_playlistCreator != null)
+        {
+            m_playlistCreator.cancel(false);
+            m_playlistCreator = null;
+        }
+        m_playlistReady = false;
+    }
+
+    @Override
+    public void onPageLoaded(int positionStart, int itemCount)
+    {
+    }
+
+    private void playSelectedTrack()
+    {
+        Playlist playlist = m_playlistCreator.getPlaylist();
+        int position = playlist.indexOfTrack(m_selectedTrackId);
+        if (position < 0 || !isMediaServiceBound())
+        {
+            return;
+        }
+
+        getMediaService().playTrack(playlist, position);
+
+        Intent intent = new Intent(this, PlayerActivity.class);
+        startActivity(intent);
     }
 }
@@ -11,6 +11,7 @@ import android.view.ViewGroup;
 import com.frost.steven.amp.R;
 import com.frost.steven.amp.helpers.BitmapResolver;
 import com.frost.steven.amp.helpers.DBPlaylistManager;
+import com.frost.steven.amp.model.LibrarySync;
 import com.frost.steven.amp.ui.adapters.SongRecyclerViewAdapter;
 import com.frost.steven.amp.ui.listeners.MenuOnClickListener;
 
@@ -22,7 +23,8 @@ import com.frost.steven.amp.ui.listeners.MenuOnClickListener;
  */
 public class SongsFragment extends Fragment
 {
-    private RecyclerView m_recyclerView;
+    private RecyclerView            m_recyclerView;
+    private SongRecyclerViewAdapter m_songRecyclerViewAdapter;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
@@ -42,16 +44,28 @@ public class SongsFragment extends Fragment
         DBPlaylistManager playlistManager = activity.getDBPlaylistManager();
 
         // Attach the song recycler view adapter
-        SongRecyclerViewAdapter songRecyclerViewAdapter = new SongRecyclerViewAdapter(
+        m_songRecyclerViewAdapter = new SongRecyclerViewAdapter(
                 activity.getMasterPlaylistTask(),
                 activity,
                 new MenuOnClickListener.SongListener.Factory(playlistManager), bitmapResolver
         );
-        m_recyclerView.setAdapter(songRecyclerViewAdapter);
+        m_recyclerView.setAdapter(m_songRecyclerViewAdapter);
+
+        // Refresh the list when the library changes
+        activity.getLibrarySync().addListener(m_songRecyclerViewAdapter);
 
         super.onResume();
     }
 
+    @Override
+    public void onPause()
+    {
+        LibraryActivity activity = (LibraryActivity)getActivity();
+        activity.getLibrarySync().removeListener(m_songRecyclerViewAdapter);
+
+        super.onPause();
+    }
+
     public static SongsFragment getInstance()
     {
         return new SongsFragment();
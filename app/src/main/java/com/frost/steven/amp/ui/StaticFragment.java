@@ -1,12 +1,12 @@
 package com.frost.steven.amp.ui;
 
-import android.content.ContentResolver;
-import android.content.res.Resources;
+import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 
+import com.frost.steven.amp.helpers.ArtworkDiskCache;
 import com.frost.steven.amp.helpers.BitmapResolver;
 
 /**
@@ -18,15 +18,16 @@ public class StaticFragment extends Fragment
 {
     private static final String FRAGMENT_ID = "com.frost.steven.amp.ui.StaticFragment";
 
+    private Context        m_appContext;
     private BitmapResolver m_bitmapResolver;
 
-    public static StaticFragment getInstance(FragmentManager fragmentManager, ContentResolver contentResolver, Resources resources)
+    public static StaticFragment getInstance(FragmentManager fragmentManager, Context context)
     {
         StaticFragment fragment = (StaticFragment)fragmentManager.findFragmentByTag(FRAGMENT_ID);
         if (fragment == null)
         {
             fragment = new StaticFragment();
-            fragment.initialise(contentResolver, resources);
+            fragment.initialise(context);
 
             FragmentTransaction transaction = fragmentManager.beginTransaction();
             transaction.add(fragment, FRAGMENT_ID);
@@ -34,7 +35,7 @@ public class StaticFragment extends Fragment
         }
         else if (fragment.m_bitmapResolver == null)
         {
-            fragment.initialise(contentResolver, resources);
+            fragment.initialise(context);
         }
 
         return fragment;
@@ -47,9 +48,34 @@ public class StaticFragment extends Fragment
         setRetainInstance(true);
     }
 
-    private void initialise(ContentResolver contentResolver, Resources resources)
+    @Override
+    public void onStart()
+    {
+        super.onStart();
+        if (m_bitmapResolver != null)
+        {
+            m_bitmapResolver.onUiVisible();
+        }
+    }
+
+    @Override
+    public void onDestroy()
     {
-        m_bitmapResolver = new BitmapResolver(resources, contentResolver);
+        if (m_bitmapResolver != null)
+        {
+            m_appContext.unregisterComponentCallbacks(m_bitmapResolver);
+        }
+        super.onDestroy();
+    }
+
+    private void initialise(Context context)
+    {
+        m_appContext = context.getApplicationContext();
+        m_bitmapResolver = new BitmapResolver(context.getResources(), context.getContentResolver(), ArtworkDiskCache.getInstance(context));
+
+        // Trim events are delivered to the application, as the resolver
+        // outlives the activity that created it
+        m_appContext.registerComponentCallbacks(m_bitmapResolver);
     }
 
     public BitmapResolver getBitmapProvider()
@@ -0,0 +1,239 @@
+package com.frost.steven.amp.ui.adapters;
+
+import android.support.annotation.Nullable;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.frost.steven.amp.R;
+import com.frost.steven.amp.helpers.BitmapResolver;
+import com.frost.steven.amp.model.AudioTrack;
+import com.frost.steven.amp.model.PagedTrackList;
+import com.frost.steven.amp.ui.MediaServiceActivity;
+import com.frost.steven.amp.ui.listeners.ArtworkPrefetchListener;
+import com.frost.steven.amp.ui.listeners.MenuOnClickListener;
+
+/**
+ * Recycler view adapter for a paged track list. Rows whose page has not been
+ * read yet are bound blank and rebound once the page arrives, and the list is
+ * told which rows are on screen as it is scrolled so it can read pages ahead
+ * and drop pages that are far away.
+ */
+public class PagedSongRecyclerViewAdapter
+    extends RecyclerView.Adapter<PagedSongRecyclerViewAdapter.ViewHolder>
+    implements PagedTrackList.Listener, ArtworkPrefetchListener.ArtworkSource
+{
+    private static final int ARTWORK_SIZE = 100;
+
+    private MediaServiceActivity        m_activity;
+    private BitmapResolver              m_bitmapResolver;
+    private ArtworkPrefetchListener     m_prefetchListener;
+    private MenuOnClickListener.Factory m_menuFactory;
+    private OnTrackClickListener        m_clickListener;
+    private PageScrollListener          m_scrollListener;
+
+    private PagedTrackList m_tracks;
+
+    /**
+     * Constructor
+     *
+     * @param tracks         The paged list to present
+     * @param activity       The parent activity
+     * @param menuFactory    Creates the popup menu listener of each row
+     * @param bitmapResolver The async bitmap provider
+     * @param clickListener  Notified when a row is clicked
+     */
+    public PagedSongRecyclerViewAdapter(PagedTrackList tracks,
+                                        MediaServiceActivity activity,
+                                        @Nullable MenuOnClickListener.Factory menuFactory,
+                                        @Nullable BitmapResolver bitmapResolver,
+                                        OnTrackClickListener clickListener)
+    {
+        m_activity       = activity;
+        m_bitmapResolver = bitmapResolver;
+        m_menuFactory    = menuFactory;
+        m_clickListener  = clickListener;
+        m_scrollListener = new PageScrollListener();
+
+        if (m_bitmapResolver != null)
+        {
+            m_prefetchListener = new ArtworkPrefetchListener(m_bitmapResolver, this, ARTWORK_SIZE);
+        }
+
+        m_tracks = tracks;
+        m_tracks.addListener(this);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType)
+    {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.element_song, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(final ViewHolder holder, final int position)
+    {
+        final AudioTrack track = m_tracks.getTrack(position);
+        if (track == null)
+        {
+            holder.m_title.setText(null);
+            holder.m_artist.setText(null);
+            holder.m_album.setText(null);
+            holder.m_duration.setText(null);
+            holder.m_albumArt.setImageBitmap(null);
+        }
+        else
+        {
+            holder.m_title.setText(track.getTitle());
+            holder.m_artist.setText(track.getArtist());
+            holder.m_album.setText(track.getAlbum());
+            holder.m_duration.setText(track.getFormattedDuration());
+
+            if (m_bitmapResolver == null)
+            {
+                holder.m_albumArt.setImageBitmap(null);
+            }
+            else
+            {
+                m_bitmapResolver.makeRequest(holder.m_albumArt, getArtworkId(position), ARTWORK_SIZE);
+            }
+        }
+
+        // Clicks and menus only need the track ID, which is always known
+        holder.m_view.setOnClickListener(new View.OnClickListener()
+        {
+            @Override
+            public void onClick(View view)
+            {
+                m_clickListener.onTrackClick(position);
+            }
+        });
+
+        if (m_menuFactory != null)
+        {
+            MenuOnClickListener listener = m_menuFactory.create(m_activity);
+            listener.setPosition(position);
+
+            holder.m_menu.setOnClickListener(listener);
+        }
+    }
+
+    @Override
+    public int getItemCount()
+    {
+        return m_tracks.getNumTracks();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView)
+    {
+        super.onAttachedToRecyclerView(recyclerView);
+        recyclerView.addOnScrollListener(m_scrollListener);
+        if (m_prefetchListener != null)
+        {
+            recyclerView.addOnScrollListener(m_prefetchListener);
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView)
+    {
+        recyclerView.removeOnScrollListener(m_scrollListener);
+        if (m_prefetchListener != null)
+        {
+            recyclerView.removeOnScrollListener(m_prefetchListener);
+            m_prefetchListener.stop();
+        }
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    @Override
+    public long getArtworkId(int position)
+    {
+        // Rows on pages that haven't been read yet are left for the bind
+        AudioTrack track = m_tracks.getTrack(position);
+        if (track == null || !track.hasCoverArt())
+        {
+            return BitmapResolver.NO_ARTWORK;
+        }
+        return track.getAlbumId();
+    }
+
+    @Override
+    public void onTrackListReset()
+    {
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onPageLoaded(int positionStart, int itemCount)
+    {
+        notifyItemRangeChanged(positionStart, itemCount);
+    }
+
+    /**
+     * Keeps the pages of the track list in step with the visible rows.
+     */
+    private class PageScrollListener extends RecyclerView.OnScrollListener
+    {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy)
+        {
+            if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager))
+            {
+                return;
+            }
+
+            LinearLayoutManager layoutManager = (LinearLayoutManager)recyclerView.getLayoutManager();
+            m_tracks.setVisibleRange(
+                layoutManager.findFirstVisibleItemPosition(),
+                layoutManager.findLastVisibleItemPosition()
+            );
+        }
+    }
+
+    /**
+     * POD structure holding view objects contained in a single audio
+     * track row.
+     */
+    protected class ViewHolder extends RecyclerView.ViewHolder
+    {
+        public final View        m_view;
+        public final ImageView   m_albumArt;
+        public final TextView    m_title;
+        public final TextView    m_artist;
+        public final TextView    m_album;
+        public final TextView    m_duration;
+        public final ImageButton m_menu;
+
+        public ViewHolder(View view)
+        {
+            super(view);
+
+            m_view     = view;
+            m_albumArt = (ImageView)view.findViewById(R.id.element_song_artwork);
+            m_title    = (TextView)view.findViewById(R.id.element_song_title);
+            m_artist   = (TextView)view.findViewById(R.id.element_song_artist);
+            m_album    = (TextView)view.findViewById(R.id.element_song_album);
+            m_duration = (TextView)view.findViewById(R.id.element_song_duration);
+            m_menu     = (ImageButton)view.findViewById(R.id.element_song_menu);
+        }
+    }
+
+    /**
+     * Notified when a row of the list is clicked.
+     */
+    public interface OnTrackClickListener
+    {
+        /**
+         * @param position The position of the clicked row
+         */
+        void onTrackClick(int position);
+    }
+}
@@ -11,14 +11,17 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.frost.steven.amp.helpers.BitmapResolver;
+import com.frost.steven.amp.ui.listeners.ArtworkPrefetchListener;
 import com.frost.steven.amp.ui.listeners.MenuOnClickListener;
 import com.frost.steven.amp.R;
 import com.frost.steven.amp.model.AudioTrack;
+import com.frost.steven.amp.model.LibrarySync;
 import com.frost.steven.amp.model.Playlist;
-import com.frost.steven.amp.service.MediaService;
 import com.frost.steven.amp.ui.MediaServiceActivity;
 import com.frost.steven.amp.ui.PlayerActivity;
 
+import java.util.List;
+
 /**
  * Recycler view adapter for lists of audio tracks. Handles the presentation of
  * a playlist with some customisation options such as being able to disable
@@ -26,10 +29,13 @@ import com.frost.steven.amp.ui.PlayerActivity;
  */
 public class SongRecyclerViewAdapter
     extends RecyclerView.Adapter<SongRecyclerViewAdapter.ViewHolder>
-    implements Playlist.ListCreator.CompletionListener
+    implements Playlist.ListCreator.ProgressListener, Playlist.ListCreator.PartitionListener, Playlist.ListCreator.CompletionListener, LibrarySync.OnLibraryChangedListener, ArtworkPrefetchListener.ArtworkSource
 {
+    private static final int ARTWORK_SIZE = 100;
+
     private MediaServiceActivity        m_activity;
     private BitmapResolver              m_bitmapResolver;
+    private ArtworkPrefetchListener     m_prefetchListener;
     private MenuOnClickListener.Factory m_menuFactory;
 
     private Playlist             m_playlist;
@@ -53,8 +59,15 @@ public class SongRecyclerViewAdapter
         m_bitmapResolver = bitmapResolver;
         m_menuFactory    = menuFactory;
 
+        if (m_bitmapResolver != null)
+        {
+            m_prefetchListener = new ArtworkPrefetchListener(m_bitmapResolver, this, ARTWORK_SIZE);
+        }
+
         m_playlistCreatorTask = playlistCreatorTask;
         m_playlist = m_playlistCreatorTask.getPlaylist();
+        m_playlistCreatorTask.addProgressListener(this);
+        m_playlistCreatorTask.addPartitionListener(this);
         m_playlistCreatorTask.addCompletionListener(this);
     }
 
@@ -71,9 +84,9 @@ public class SongRecyclerViewAdapter
         final AudioTrack track = m_playlist.getUnshuffledTrack(position);
 
         // Title, artist, album and duration text fields
-        holder.m_title.setText(track.Title);
-        holder.m_artist.setText(track.Artist);
-        holder.m_album.setText(track.Album);
+        holder.m_title.setText(track.getTitle());
+        holder.m_artist.setText(track.getArtist());
+        holder.m_album.setText(track.getAlbum());
         holder.m_duration.setText(track.getFormattedDuration());
 
         // Album art
@@ -84,7 +97,7 @@ public class SongRecyclerViewAdapter
         }
         else
         {
-            m_bitmapResolver.makeRequest(holder.m_albumArt, track.CoverArt, 100);
+            m_bitmapResolver.makeRequest(holder.m_albumArt, getArtworkId(position), ARTWORK_SIZE);
         }
 
         holder.m_view.setOnClickListener(new SongClickListener(position));
@@ -106,6 +119,53 @@ public class SongRecyclerViewAdapter
         return m_playlist.getNumTracks();
     }
 
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView)
+    {
+        super.onAttachedToRecyclerView(recyclerView);
+        if (m_prefetchListener != null)
+        {
+            recyclerView.addOnScrollListener(m_prefetchListener);
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView)
+    {
+        if (m_prefetchListener != null)
+        {
+            recyclerView.removeOnScrollListener(m_prefetchListener);
+            m_prefetchListener.stop();
+        }
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    @Override
+    public long getArtworkId(int position)
+    {
+        AudioTrack track = m_playlist.getUnshuffledTrack(position);
+        if (!track.hasCoverArt())
+        {
+            return BitmapResolver.NO_ARTWORK;
+        }
+        return track.getAlbumId();
+    }
+
+    @Override
+    public void onPlaylistProgress(int positionStart, int itemCount)
+    {
+        notifyItemRangeInserted(positionStart, itemCount);
+    }
+
+    @Override
+    public void onPartitionScanned(int partition, int numPartitions, boolean replaced)
+    {
+        if (replaced)
+        {
+            notifyDataSetChanged();
+        }
+    }
+
     @Override
     public void onPlaylistCompleted()
     {
@@ -113,6 +173,12 @@ public class SongRecyclerViewAdapter
         notifyDataSetChanged();
     }
 
+    @Override
+    public void onLibraryChanged(List<AudioTrack> removedTracks, List<AudioTrack> addedTracks)
+    {
+        notifyDataSetChanged();
+    }
+
     /**
      * POD structure holding view objects contained in a single audio
      * track row.
@@ -162,20 +228,8 @@ public class SongRecyclerViewAdapter
                 return;
             }
 
-            // Get the current track
-            MediaService mediaService = m_activity.getMediaService();
-            AudioTrack currentTrack = mediaService.getCurrentTrack();
-
-            // Update the playlist bound to the service
-            m_playlist.setCursor(m_position);
-            mediaService.setPlaylist(m_playlist);
-
             // Play the selected track if it isn't the track that is already playing
-            if (currentTrack != m_playlist.getUnshuffledTrack(m_position))
-            {
-                mediaService.stop();
-                mediaService.play();
-            }
+            m_activity.getMediaService().playTrack(m_playlist, m_position);
 
             // Start the player activity
             Intent intent = new Intent(m_activity, PlayerActivity.class);
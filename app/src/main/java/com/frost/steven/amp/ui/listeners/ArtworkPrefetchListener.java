@@ -0,0 +1,138 @@
+package com.frost.steven.amp.ui.listeners;
+
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.frost.steven.amp.helpers.BitmapResolver;
+
+/**
+ * Scroll listener that keeps list artwork ahead of the user. While a list is
+ * scrolled slowly the artwork for the rows about to come into view is loaded
+ * into the bitmap resolver's cache, so the rows already have their artwork
+ * when they are bound. While the list is flung thumbnail loading is paused
+ * entirely, since the rows go past too quickly for their artwork to be seen,
+ * and resumed when the list settles.
+ */
+public class ArtworkPrefetchListener extends RecyclerView.OnScrollListener
+{
+    private static final int   NUM_PREFETCH_ROWS = 8;
+    private static final float FLING_VELOCITY    = 2.0f; // List heights per second
+
+    private BitmapResolver m_bitmapResolver;
+    private ArtworkSource  m_source;
+    private int            m_size;
+
+    private long  m_lastScrollTime;
+    private float m_velocity;
+    private int   m_prefetchedFrom = -1;
+    private int   m_prefetchedTo   = -1;
+
+    /**
+     * Constructor
+     *
+     * @param bitmapResolver The resolver to load artwork into
+     * @param source         Supplies the album of each row
+     * @param size           The size of the artwork shown in each row
+     */
+    public ArtworkPrefetchListener(BitmapResolver bitmapResolver, ArtworkSource source, int size)
+    {
+        m_bitmapResolver = bitmapResolver;
+        m_source         = source;
+        m_size           = size;
+    }
+
+    /**
+     * Resumes artwork loading if the listener paused it. This must be called
+     * when the listener is removed from its list, as the list may have been
+     * removed part way through a fling.
+     */
+    public void stop()
+    {
+        m_velocity = 0.0f;
+        m_bitmapResolver.setPaused(false);
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState)
+    {
+        if (newState == RecyclerView.SCROLL_STATE_SETTLING)
+        {
+            m_bitmapResolver.setPaused(true);
+        }
+        else if (newState == RecyclerView.SCROLL_STATE_IDLE)
+        {
+            m_velocity = 0.0f;
+            m_bitmapResolver.setPaused(false);
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy)
+    {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - m_lastScrollTime;
+        m_lastScrollTime = now;
+
+        int height = recyclerView.getHeight();
+        if (dy == 0 || height == 0 || !(recyclerView.getLayoutManager() instanceof LinearLayoutManager))
+        {
+            return;
+        }
+
+        // Smooth the velocity as scroll events arrive once per frame and a
+        // single frame can be a poor estimate
+        if (elapsed > 0 && elapsed < 1000)
+        {
+            float velocity = Math.abs(dy) * 1000.0f / (elapsed * height);
+            m_velocity = 0.5f * m_velocity + 0.5f * velocity;
+        }
+
+        if (m_velocity > FLING_VELOCITY)
+        {
+            m_bitmapResolver.setPaused(true);
+            return;
+        }
+        m_bitmapResolver.setPaused(false);
+
+        LinearLayoutManager layoutManager = (LinearLayoutManager)recyclerView.getLayoutManager();
+        int itemCount = recyclerView.getAdapter() == null ? 0 : recyclerView.getAdapter().getItemCount();
+
+        int from, to;
+        if (dy > 0)
+        {
+            from = layoutManager.findLastVisibleItemPosition() + 1;
+            to   = Math.min(from + NUM_PREFETCH_ROWS, itemCount);
+        }
+        else
+        {
+            to   = layoutManager.findFirstVisibleItemPosition();
+            from = Math.max(to - NUM_PREFETCH_ROWS, 0);
+        }
+
+        // Only the rows that weren't covered by the last prefetch are needed
+        for (int position = from; position < to; ++position)
+        {
+            if (position < m_prefetchedFrom || position >= m_prefetchedTo)
+            {
+                m_bitmapResolver.prefetch(m_source.getArtworkId(position), m_size);
+            }
+        }
+        m_prefetchedFrom = from;
+        m_prefetchedTo   = to;
+    }
+
+    /**
+     * Supplies the album whose artwork is shown in each row of a list.
+     */
+    public interface ArtworkSource
+    {
+        /**
+         * @param position The adapter position of the row
+         *
+         * @return The album ID, or `BitmapResolver.NO_ARTWORK` if the row has
+         *         no artwork or its album is not known yet.
+         */
+        long getArtworkId(int position);
+    }
+}
@@ -14,6 +14,7 @@ import com.frost.steven.amp.R;
 import com.frost.steven.amp.model.AudioTrack;
 import com.frost.steven.amp.model.DBPlaylist;
 import com.frost.steven.amp.helpers.DBPlaylistManager;
+import com.frost.steven.amp.model.PagedTrackList;
 import com.frost.steven.amp.model.Playlist;
 
 import java.util.List;
@@ -95,7 +96,7 @@ public abstract class MenuOnClickListener implements View.OnClickListener
                     else if (item.getItemId() == R.id.menu_song_new_playlist)
                     {
                         Bundle bundle = new Bundle();
-                        bundle.putLong("trackID", track.ID);
+                        bundle.putLong("trackID", track.getId());
 
                         DialogFragment df = new NewPlaylistFragment();
                         df.setArguments(bundle);
@@ -105,7 +106,7 @@ public abstract class MenuOnClickListener implements View.OnClickListener
                     else
                     {
                         DBPlaylist playlist = m_playlistManager.getPlaylistAt(item.getItemId());
-                        playlist.addTrack(m_activity.getContentResolver(), track.ID);
+                        playlist.addTrack(m_activity.getContentResolver(), track.getId());
                     }
                     return true;
                 }
@@ -151,24 +152,25 @@ public abstract class MenuOnClickListener implements View.OnClickListener
     /**
      * Concrete implementation of a menu click listener for a playlist song
      * element. The menu features the ability to remove a song from the current
-     * playlist.
+     * playlist, after which its paged list of tracks is read again.
      */
     public static class PlaylistSongListener extends MenuOnClickListener
     {
-        Playlist   m_playlist;
-        DBPlaylist m_databasePlaylist;
+        PagedTrackList m_tracks;
+        DBPlaylist     m_databasePlaylist;
 
         /**
          * Constructor
          *
-         * @param activity The parent activity
-         * @param playlist The database playlist to use as context
+         * @param activity         The parent activity
+         * @param tracks           The paged tracks of the playlist
+         * @param databasePlaylist The database playlist to use as context
          */
-        PlaylistSongListener(Activity activity, Playlist playlist, DBPlaylist databasePlaylist)
+        PlaylistSongListener(Activity activity, PagedTrackList tracks, DBPlaylist databasePlaylist)
         {
             super(activity);
 
-            m_playlist = playlist;
+            m_tracks           = tracks;
             m_databasePlaylist = databasePlaylist;
         }
 
@@ -183,10 +185,8 @@ public abstract class MenuOnClickListener implements View.OnClickListener
                 {
                     if (item.getItemId() == R.id.menu_playlist_song_remove)
                     {
-                        AudioTrack track = m_playlist.getUnshuffledTrack(m_position);
-
-                        m_databasePlaylist.removeTrack(m_activity.getContentResolver(), track.ID);
-                        m_playlist.removeTrack(m_position);
+                        m_databasePlaylist.removeTrack(m_activity.getContentResolver(), m_tracks.getTrackId(m_position));
+                        m_tracks.reload();
                         return true;
                     }
                     return false;
@@ -206,19 +206,19 @@ public abstract class MenuOnClickListener implements View.OnClickListener
          */
         public static class Factory implements MenuOnClickListener.Factory
         {
-            private Playlist   m_playlist;
-            private DBPlaylist m_databasePlaylist;
+            private PagedTrackList m_tracks;
+            private DBPlaylist     m_databasePlaylist;
 
-            public Factory(Playlist playlist, DBPlaylist databasePlaylist)
+            public Factory(PagedTrackList tracks, DBPlaylist databasePlaylist)
             {
-                m_playlist         = playlist;
+                m_tracks           = tracks;
                 m_databasePlaylist = databasePlaylist;
             }
 
             @Override
             public MenuOnClickListener create(Activity activity)
             {
-                return new PlaylistSongListener(activity, m_playlist, m_databasePlaylist);
+                return new PlaylistSongListener(activity, m_tracks, m_databasePlaylist);
             }
         }
     }
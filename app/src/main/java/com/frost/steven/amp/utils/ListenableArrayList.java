@@ -107,6 +107,11 @@ public class ListenableArrayList<E> extends ArrayList<E>
         m_listeners.add(listener);
     }
 
+    public void detachListener(OnCollectionChangedListener listener)
+    {
+        m_listeners.remove(listener);
+    }
+
     private void notifyListeners()
     {
         for (OnCollectionChangedListener listener : m_listeners)
@@ -0,0 +1,397 @@
+package com.frost.steven.amp.utils;
+
+import java.util.Arrays;
+
+/**
+ * A least recently used cache keyed by primitive longs. It behaves like
+ * `android.util.LruCache` but keys are never boxed, and entries live in
+ * parallel arrays that are reused as entries come and go, so lookups and
+ * insertions do not allocate once the cache has reached its working size.
+ *
+ * Unlike `LruCache` this class is not synchronized, callers must provide
+ * their own locking if the cache is shared between threads.
+ *
+ * @param <V> the cached type
+ */
+public class LongLruCache<V>
+{
+    private static final int NONE = -1;
+
+    private int m_maxSize;
+    private int m_size;
+
+    // Hash table of chains, each bucket holds the first entry index + 1
+    private int[] m_buckets;
+    private int[] m_chain;
+
+    // Entries, linked from the least to the most recently used
+    private long[]   m_keys;
+    private Object[] m_values;
+    private int[]    m_older;
+    private int[]    m_newer;
+    private int      m_eldest;
+    private int      m_youngest;
+
+    private int m_count;
+    private int m_used;
+    private int m_free;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize The maximum total size of the entries, in the units
+     *                returned by `sizeOf`
+     */
+    public LongLruCache(int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        m_maxSize = maxSize;
+
+        m_buckets  = new int[32];
+        m_chain    = new int[16];
+        m_keys     = new long[16];
+        m_values   = new Object[16];
+        m_older    = new int[16];
+        m_newer    = new int[16];
+        m_eldest   = NONE;
+        m_youngest = NONE;
+        m_free     = NONE;
+    }
+
+    /**
+     * Gets the value for a key and marks it as the most recently used.
+     *
+     * @param key The key to look up
+     *
+     * @return The cached value, or null if the key is not in the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public final V get(long key)
+    {
+        int entry = find(key);
+        if (entry == NONE)
+        {
+            return null;
+        }
+
+        moveToYoungest(entry);
+        return (V)m_values[entry];
+    }
+
+    /**
+     * Gets the value for a key without changing its position in the cache.
+     *
+     * @param key The key to look up
+     *
+     * @return The cached value, or null if the key is not in the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public final V peek(long key)
+    {
+        int entry = find(key);
+        return entry == NONE ? null : (V)m_values[entry];
+    }
+
+    /**
+     * Caches a value as the most recently used entry and evicts entries as
+     * needed to stay within the maximum size.
+     *
+     * @param key   The key to store the value under
+     * @param value The value to store
+     *
+     * @return The value previously stored under the key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public final V put(long key, V value)
+    {
+        if (value == null)
+        {
+            throw new NullPointerException("value == null");
+        }
+
+        V previous = null;
+        int entry = find(key);
+        if (entry != NONE)
+        {
+            previous = (V)m_values[entry];
+            m_size -= safeSizeOf(key, previous);
+            m_values[entry] = value;
+            moveToYoungest(entry);
+        }
+        else
+        {
+            entry = allocate(key, value);
+            link(entry);
+        }
+        m_size += safeSizeOf(key, value);
+
+        if (previous != null)
+        {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(m_maxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for a key.
+     *
+     * @param key The key to remove
+     *
+     * @return The value that was removed, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public final V remove(long key)
+    {
+        int entry = find(key);
+        if (entry == NONE)
+        {
+            return null;
+        }
+
+        V value = (V)m_values[entry];
+        release(entry);
+        m_size -= safeSizeOf(key, value);
+
+        entryRemoved(false, key, value, null);
+        return value;
+    }
+
+    /**
+     * Evicts the least recently used entries until the total size of the
+     * remaining entries is no more than the given size.
+     *
+     * @param maxSize The size to trim the cache to, or -1 to evict every
+     *                entry
+     */
+    @SuppressWarnings("unchecked")
+    public void trimToSize(int maxSize)
+    {
+        while (m_eldest != NONE && (maxSize < 0 || m_size > maxSize))
+        {
+            int entry = m_eldest;
+            long key = m_keys[entry];
+            V value = (V)m_values[entry];
+
+            release(entry);
+            m_size -= safeSizeOf(key, value);
+
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Evicts every entry.
+     */
+    public final void evictAll()
+    {
+        trimToSize(-1);
+    }
+
+    /**
+     * Changes the maximum size of the cache, evicting entries if the cache
+     * is now over the limit.
+     *
+     * @param maxSize The new maximum size
+     */
+    public void resize(int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        m_maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return The total size of the cached entries
+     */
+    public final int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * @return The maximum total size of the cached entries
+     */
+    public final int maxSize()
+    {
+        return m_maxSize;
+    }
+
+    /**
+     * @return The number of cached entries
+     */
+    public final int count()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the size of an entry in user-defined units. The default
+     * implementation counts entries.
+     */
+    protected int sizeOf(long key, V value)
+    {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted, removed or replaced.
+     *
+     * @param evicted  True if the entry was evicted to make space
+     * @param key      The key of the entry
+     * @param oldValue The value that was removed
+     * @param newValue The value that replaced it, or null
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {}
+
+    private int safeSizeOf(long key, V value)
+    {
+        int size = sizeOf(key, value);
+        if (size < 0)
+        {
+            throw new IllegalStateException("Negative size for key " + key + ".");
+        }
+        return size;
+    }
+
+    private int find(long key)
+    {
+        int entry = m_buckets[bucketOf(key, m_buckets.length)] - 1;
+        while (entry != NONE && m_keys[entry] != key)
+        {
+            entry = m_chain[entry];
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a new entry in a free slot and adds it to its hash chain. The
+     * entry is not linked into the usage order.
+     */
+    private int allocate(long key, Object value)
+    {
+        int entry;
+        if (m_free != NONE)
+        {
+            entry = m_free;
+            m_free = m_chain[entry];
+        }
+        else
+        {
+            if (m_used == m_keys.length)
+            {
+                grow();
+            }
+            entry = m_used++;
+        }
+
+        m_keys[entry]   = key;
+        m_values[entry] = value;
+
+        int bucket = bucketOf(key, m_buckets.length);
+        m_chain[entry]    = m_buckets[bucket] - 1;
+        m_buckets[bucket] = entry + 1;
+
+        ++m_count;
+        return entry;
+    }
+
+    /**
+     * Unlinks an entry from its hash chain and the usage order and returns
+     * its slot to the free list.
+     */
+    private void release(int entry)
+    {
+        int bucket = bucketOf(m_keys[entry], m_buckets.length);
+        int current = m_buckets[bucket] - 1;
+        if (current == entry)
+        {
+            m_buckets[bucket] = m_chain[entry] + 1;
+        }
+        else
+        {
+            while (m_chain[current] != entry)
+            {
+                current = m_chain[current];
+            }
+            m_chain[current] = m_chain[entry];
+        }
+
+        unlink(entry);
+
+        m_values[entry] = null;
+        m_chain[entry]  = m_free;
+        m_free          = entry;
+        --m_count;
+    }
+
+    private void link(int entry)
+    {
+        m_older[entry] = m_youngest;
+        m_newer[entry] = NONE;
+        if (m_youngest != NONE)
+        {
+            m_newer[m_youngest] = entry;
+        }
+        else
+        {
+            m_eldest = entry;
+        }
+        m_youngest = entry;
+    }
+
+    private void unlink(int entry)
+    {
+        int older = m_older[entry];
+        int newer = m_newer[entry];
+
+        if (older != NONE) { m_newer[older] = newer; } else { m_eldest = newer; }
+        if (newer != NONE) { m_older[newer] = older; } else { m_youngest = older; }
+    }
+
+    private void moveToYoungest(int entry)
+    {
+        if (entry != m_youngest)
+        {
+            unlink(entry);
+            link(entry);
+        }
+    }
+
+    /**
+     * Doubles the number of entry slots and rebuilds the hash chains so the
+     * table stays at most half full.
+     */
+    private void grow()
+    {
+        int capacity = m_keys.length * 2;
+
+        m_keys   = Arrays.copyOf(m_keys, capacity);
+        m_values = Arrays.copyOf(m_values, capacity);
+        m_older  = Arrays.copyOf(m_older, capacity);
+        m_newer  = Arrays.copyOf(m_newer, capacity);
+        m_chain  = new int[capacity];
+
+        // The cache only grows once the free list is empty, so every slot in
+        // use holds a live entry
+        m_buckets = new int[capacity * 2];
+        for (int entry = 0; entry < m_used; ++entry)
+        {
+            int bucket = bucketOf(m_keys[entry], m_buckets.length);
+            m_chain[entry]    = m_buckets[bucket] - 1;
+            m_buckets[bucket] = entry + 1;
+        }
+    }
+
+    private static int bucketOf(long key, int numBuckets)
+    {
+        int hash = (int)(key ^ (key >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (numBuckets - 1);
+    }
+}
@@ -0,0 +1,221 @@
+package com.frost.steven.amp.utils;
+
+import android.database.CharArrayBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Interns strings and hands out a stable integer ID for each distinct value.
+ * Artist, album and title strings repeat heavily across a music library, and
+ * values can be interned straight from a cursor's character buffer without
+ * allocating a `String` for values that are already in the pool.
+ *
+ * A pool belongs to a single scan of the library along with any syncs applied
+ * on top of it, and is dropped along with its tracks when the library is
+ * scanned again. The pool is append-only, so an ID stays valid for the life
+ * of the pool. Interning is synchronized, but strings are read without
+ * locking. Each string is written before the size is published and the
+ * string array is only replaced by a full copy, so any ID that has been
+ * handed to another thread can be read from the array it sees.
+ */
+public class StringPool
+{
+    public static final int NULL_ID = -1;
+
+    // Approximate cost of a String and its character array on top of the
+    // characters themselves
+    private static final int STRING_OVERHEAD = 40;
+
+    private volatile String[] m_strings;
+    private volatile int      m_size;
+    private int[]             m_slots;
+    private long              m_bytesSaved;
+
+    public StringPool()
+    {
+        m_strings = new String[256];
+        m_slots   = new int[512];
+    }
+
+    /**
+     * Interns the given string.
+     *
+     * @param value The string to intern, may be null
+     *
+     * @return The ID of the string, or `NULL_ID` if it is null.
+     */
+    public synchronized int intern(String value)
+    {
+        if (value == null)
+        {
+            return NULL_ID;
+        }
+
+        int length = value.length();
+        int hash = value.hashCode();
+        int slot = findSlot(hash, value, null, length);
+        if (m_slots[slot] != 0)
+        {
+            m_bytesSaved += STRING_OVERHEAD + length * 2;
+            return m_slots[slot] - 1;
+        }
+        return insert(slot, value);
+    }
+
+    /**
+     * Interns the characters copied into the given buffer. A string is only
+     * allocated if the value is not already in the pool.
+     *
+     * @param buffer The buffer holding the characters to intern
+     *
+     * @return The ID of the string
+     */
+    public synchronized int intern(CharArrayBuffer buffer)
+    {
+        char[] chars = buffer.data;
+        int length = buffer.sizeCopied;
+
+        int hash = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            hash = 31 * hash + chars[i];
+        }
+
+        int slot = findSlot(hash, null, chars, length);
+        if (m_slots[slot] != 0)
+        {
+            m_bytesSaved += STRING_OVERHEAD + length * 2;
+            return m_slots[slot] - 1;
+        }
+        return insert(slot, new String(chars, 0, length));
+    }
+
+    /**
+     * Gets the string with the given ID.
+     *
+     * @param id The ID returned when the string was interned
+     *
+     * @return The string, or null if the ID is `NULL_ID`.
+     */
+    public String get(int id)
+    {
+        return id == NULL_ID ? null : m_strings[id];
+    }
+
+    /**
+     * @return The number of distinct strings in the pool
+     */
+    public int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * Interns every string in this pool into another pool, so values built
+     * up in separate pools can be shared once they are combined.
+     *
+     * @param target The pool to intern the strings into
+     *
+     * @return The ID of each string in the target pool, indexed by its ID
+     *         in this pool
+     */
+    public int[] mergeInto(StringPool target)
+    {
+        int size = m_size;
+        String[] strings = m_strings;
+
+        int[] ids = new int[size];
+        for (int id = 0; id < size; ++id)
+        {
+            ids[id] = target.intern(strings[id]);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets an estimate of the memory saved by the pool, being the size of
+     * every duplicate string that would otherwise have been retained.
+     *
+     * @return The estimated number of bytes saved
+     */
+    public synchronized long getBytesSaved()
+    {
+        return m_bytesSaved;
+    }
+
+    /**
+     * Finds the slot holding a matching string, or the empty slot it should
+     * be inserted into. The value to match is given either as a string or as
+     * a character array.
+     */
+    private int findSlot(int hash, String value, char[] chars, int length)
+    {
+        int mask = m_slots.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (m_slots[slot] != 0)
+        {
+            String candidate = m_strings[m_slots[slot] - 1];
+            if (candidate.length() == length && (value != null ? candidate.equals(value) : matches(candidate, chars, length)))
+            {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int insert(int slot, String value)
+    {
+        int id = m_size;
+        String[] strings = m_strings;
+        if (id == strings.length)
+        {
+            strings = Arrays.copyOf(strings, id * 2);
+            m_strings = strings;
+        }
+
+        strings[id] = value;
+        m_slots[slot] = id + 1;
+
+        // Publishes the string to readers
+        m_size = id + 1;
+
+        // Keep the table at most half full so probe sequences stay short
+        if (m_size * 2 > m_slots.length)
+        {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash()
+    {
+        m_slots = new int[m_slots.length * 2];
+        int mask = m_slots.length - 1;
+
+        String[] strings = m_strings;
+        for (int id = 0; id < m_size; ++id)
+        {
+            int hash = strings[id].hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (m_slots[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            m_slots[slot] = id + 1;
+        }
+    }
+
+    private static boolean matches(String candidate, char[] chars, int length)
+    {
+        for (int i = 0; i < length; ++i)
+        {
+            if (candidate.charAt(i) != chars[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
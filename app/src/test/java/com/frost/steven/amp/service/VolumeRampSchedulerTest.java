@@ -0,0 +1,200 @@
+package com.frost.steven.amp.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the volume ramp scheduler against a fake clock and fake players.
+ */
+public class VolumeRampSchedulerTest
+{
+    private static final long  TICK      = 20;
+    private static final float TOLERANCE = 1e-4f;
+
+    private FakeClock           m_clock;
+    private VolumeRampScheduler m_scheduler;
+
+    @Before
+    public void setUp()
+    {
+        m_clock = new FakeClock();
+        m_scheduler = new VolumeRampScheduler(m_clock, TICK);
+    }
+
+    @Test
+    public void ramp_endsExactlyAtTarget() throws Exception
+    {
+        FakePlayer player = new FakePlayer();
+        m_scheduler.start(player, 0.0f, 1.0f, 1000, null);
+        assertEquals(0.0f, player.m_volume, 0.0f);
+
+        runUntilIdle();
+
+        assertEquals(1.0f, player.m_volume, 0.0f);
+        assertEquals(1000 / TICK, m_scheduler.getNumTicks());
+    }
+
+    @Test
+    public void crossfade_keepsConstantPower() throws Exception
+    {
+        FakePlayer fadeIn  = new FakePlayer();
+        FakePlayer fadeOut = new FakePlayer();
+        m_scheduler.start(fadeIn, 0.0f, 1.0f, 3000, null);
+        m_scheduler.start(fadeOut, 1.0f, 0.0f, 3000, null);
+
+        long delay;
+        while ((delay = m_scheduler.tick()) >= 0)
+        {
+            float power = fadeIn.m_volume * fadeIn.m_volume + fadeOut.m_volume * fadeOut.m_volume;
+            assertEquals(1.0f, power, TOLERANCE);
+            m_clock.sleep(delay);
+        }
+    }
+
+    @Test
+    public void ramp_followsElapsedTimeWhenTicksAreLate() throws Exception
+    {
+        FakePlayer player = new FakePlayer();
+        m_scheduler.start(player, 0.0f, 1.0f, 1000, null);
+
+        // Every tick arrives 7ms late, which must not push later deadlines
+        // back or leave the ramp behind
+        for (int i = 1; i <= 10; ++i)
+        {
+            long delay = m_scheduler.tick();
+            assertTrue(delay > 0 && delay <= TICK);
+            m_clock.sleep(delay + 7);
+
+            m_scheduler.tick();
+            assertEquals(expectedFadeIn(m_clock.uptimeMillis(), 1000), player.m_volume, TOLERANCE);
+            assertEquals(TICK - 7, m_scheduler.tick());
+        }
+    }
+
+    @Test
+    public void ramp_skipsMissedTicks() throws Exception
+    {
+        FakePlayer player = new FakePlayer();
+        m_scheduler.start(player, 0.0f, 1.0f, 1000, null);
+
+        m_clock.sleep(TICK * 3 + TICK / 2);
+        long delay = m_scheduler.tick();
+
+        assertEquals(1, m_scheduler.getNumTicks());
+        assertEquals(1, player.m_numCalls - 1);
+        assertEquals(TICK / 2, delay);
+    }
+
+    @Test
+    public void tick_setsEachTargetOnlyWhenItsVolumeChanges() throws Exception
+    {
+        FakePlayer ramped = new FakePlayer();
+        FakePlayer steady = new FakePlayer();
+        m_scheduler.start(ramped, 1.0f, 0.0f, 500, null);
+        m_scheduler.start(steady, 0.5f, 0.5f, 500, null);
+
+        runUntilIdle();
+
+        // One call for the start volume and at most one per tick after that
+        int numTicks = m_scheduler.getNumTicks();
+        assertTrue(ramped.m_numCalls <= numTicks + 1);
+        assertEquals(1, steady.m_numCalls);
+    }
+
+    @Test
+    public void tick_isNotDueBeforeDeadline() throws Exception
+    {
+        FakePlayer player = new FakePlayer();
+        m_scheduler.start(player, 0.0f, 1.0f, 1000, null);
+
+        m_clock.sleep(TICK - 1);
+        assertEquals(1, m_scheduler.tick());
+        assertEquals(0, m_scheduler.getNumTicks());
+        assertEquals(1, player.m_numCalls);
+    }
+
+    @Test
+    public void cancel_stopsUpdates() throws Exception
+    {
+        FakePlayer player = new FakePlayer();
+        VolumeRampScheduler.Ramp ramp = m_scheduler.start(player, 0.0f, 1.0f, 1000, null);
+
+        m_clock.sleep(TICK);
+        m_scheduler.tick();
+        float volume = player.m_volume;
+
+        m_scheduler.cancel(ramp);
+        m_clock.sleep(TICK);
+
+        assertEquals(-1, m_scheduler.tick());
+        assertEquals(volume, player.m_volume, 0.0f);
+    }
+
+    @Test
+    public void listener_calledOnceWhenRampFinishes() throws Exception
+    {
+        final List<VolumeRampScheduler.Ramp> finished = new ArrayList<>();
+        VolumeRampScheduler.Ramp ramp = m_scheduler.start(new FakePlayer(), 1.0f, 0.0f, 100, new VolumeRampScheduler.OnRampFinishedListener()
+        {
+            @Override
+            public void onRampFinished(VolumeRampScheduler.Ramp ramp)
+            {
+                finished.add(ramp);
+            }
+        });
+
+        runUntilIdle();
+
+        assertEquals(1, finished.size());
+        assertSame(ramp, finished.get(0));
+    }
+
+    private void runUntilIdle() throws InterruptedException
+    {
+        long delay;
+        while ((delay = m_scheduler.tick()) >= 0)
+        {
+            m_clock.sleep(delay);
+        }
+    }
+
+    private static float expectedFadeIn(long elapsed, long duration)
+    {
+        return (float)Math.sqrt(Math.min((double)elapsed / duration, 1.0));
+    }
+
+    private static class FakeClock implements VolumeRampScheduler.Clock
+    {
+        private long m_now = 0;
+
+        @Override
+        public long uptimeMillis()
+        {
+            return m_now;
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            m_now += millis;
+        }
+    }
+
+    private static class FakePlayer implements VolumeRampScheduler.VolumeTarget
+    {
+        private float m_volume   = -1.0f;
+        private int   m_numCalls = 0;
+
+        @Override
+        public void setVolume(float volume)
+        {
+            m_volume = volume;
+            ++m_numCalls;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.frost.steven.amp.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the usage order, size accounting and slot reuse of the long keyed
+ * LRU cache against a cache that records every removal.
+ */
+public class LongLruCacheTest
+{
+    private RecordingCache m_cache;
+
+    @Before
+    public void setUp()
+    {
+        m_cache = new RecordingCache(3);
+    }
+
+    @Test
+    public void get_marksEntryAsMostRecentlyUsed() throws Exception
+    {
+        m_cache.put(1, "a");
+        m_cache.put(2, "b");
+        m_cache.put(3, "c");
+
+        assertEquals("a", m_cache.get(1));
+        m_cache.put(4, "d");
+
+        assertEquals(Arrays.asList("evicted 2=b"), m_cache.m_removals);
+        assertEquals("a", m_cache.peek(1));
+        assertNull(m_cache.peek(2));
+    }
+
+    @Test
+    public void peek_leavesUsageOrderUnchanged() throws Exception
+    {
+        m_cache.put(1, "a");
+        m_cache.put(2, "b");
+        m_cache.put(3, "c");
+
+        assertEquals("a", m_cache.peek(1));
+        m_cache.put(4, "d");
+
+        assertEquals(Arrays.asList("evicted 1=a"), m_cache.m_removals);
+        assertNull(m_cache.get(1));
+    }
+
+    @Test
+    public void put_evictsEldestUntilWithinMaxSize() throws Exception
+    {
+        RecordingCache cache = new RecordingCache(10);
+        cache.m_sizeOfLength = true;
+
+        cache.put(1, "aaaa");
+        cache.put(2, "bbb");
+        cache.put(3, "cc");
+        assertEquals(9, cache.size());
+        assertEquals(3, cache.count());
+
+        cache.put(4, "dddddd");
+
+        assertEquals(Arrays.asList("evicted 1=aaaa", "evicted 2=bbb"), cache.m_removals);
+        assertEquals(8, cache.size());
+        assertEquals(2, cache.count());
+    }
+
+    @Test
+    public void put_replacingValueReportsRemovalWithoutEviction() throws Exception
+    {
+        RecordingCache cache = new RecordingCache(10);
+        cache.m_sizeOfLength = true;
+
+        cache.put(1, "aaaa");
+        cache.put(2, "bb");
+        assertEquals("aaaa", cache.put(1, "a"));
+
+        assertEquals(Arrays.asList("replaced 1=aaaa with a"), cache.m_removals);
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.count());
+
+        // The replaced entry is now the most recently used
+        cache.put(3, "cccccccc");
+        assertEquals("evicted 2=bb", cache.m_removals.get(1));
+        assertEquals("a", cache.peek(1));
+    }
+
+    @Test
+    public void remove_freesSlotsForNewEntries() throws Exception
+    {
+        RecordingCache cache = new RecordingCache(100);
+        for (long key = 0; key < 10; ++key)
+        {
+            cache.put(key, "v" + key);
+        }
+        for (long key = 0; key < 10; key += 2)
+        {
+            assertEquals("v" + key, cache.remove(key));
+        }
+        assertNull(cache.remove(0));
+        assertEquals("removed 8=v8", cache.m_removals.get(4));
+        assertEquals(5, cache.count());
+
+        for (long key = 10; key < 15; ++key)
+        {
+            cache.put(key, "v" + key);
+        }
+
+        assertEquals(10, cache.count());
+        assertEquals(10, cache.size());
+        for (long key = 0; key < 15; ++key)
+        {
+            boolean removed = key < 10 && key % 2 == 0;
+            assertEquals(removed ? null : "v" + key, cache.peek(key));
+        }
+
+        // Reused slots keep the usage order of their new entries
+        cache.trimToSize(5);
+        assertEquals(Arrays.asList("evicted 1=v1", "evicted 3=v3", "evicted 5=v5", "evicted 7=v7", "evicted 9=v9"),
+            cache.m_removals.subList(5, 10));
+    }
+
+    @Test
+    public void grow_keepsEveryEntryReachable() throws Exception
+    {
+        RecordingCache cache = new RecordingCache(1000);
+
+        // `i << 32` and `-i - 1` fold to the same hash, so chains hold
+        // several entries when the table is rebuilt
+        List<Long> keys = new ArrayList<>();
+        for (long i = 0; i < 100; ++i)
+        {
+            keys.add(i << 32);
+            keys.add(-i - 1);
+        }
+        keys.add(Long.MAX_VALUE);
+
+        for (long key : keys)
+        {
+            cache.put(key, Long.toString(key));
+        }
+
+        assertEquals(keys.size(), cache.count());
+        for (long key : keys)
+        {
+            assertEquals(Long.toString(key), cache.peek(key));
+        }
+
+        cache.trimToSize(keys.size() - 3);
+        assertEquals(Arrays.asList("evicted 0=0", "evicted -1=-1", "evicted 4294967296=4294967296"), cache.m_removals);
+    }
+
+    @Test
+    public void resize_evictsToNewMaxSize() throws Exception
+    {
+        m_cache.put(1, "a");
+        m_cache.put(2, "b");
+        m_cache.put(3, "c");
+
+        m_cache.resize(1);
+
+        assertEquals(1, m_cache.maxSize());
+        assertEquals(1, m_cache.size());
+        assertEquals(Arrays.asList("evicted 1=a", "evicted 2=b"), m_cache.m_removals);
+
+        m_cache.resize(5);
+        m_cache.put(4, "d");
+        m_cache.put(5, "e");
+        assertEquals(3, m_cache.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resize_rejectsEmptyCache() throws Exception
+    {
+        m_cache.resize(0);
+    }
+
+    @Test
+    public void trimToSize_negativeEvictsEntriesWithoutSize() throws Exception
+    {
+        RecordingCache cache = new RecordingCache(10);
+        cache.m_sizeOfLength = true;
+        cache.put(1, "");
+        cache.put(2, "bb");
+        cache.put(3, "");
+
+        cache.trimToSize(0);
+        assertEquals(Arrays.asList("evicted 1=", "evicted 2=bb"), cache.m_removals);
+        assertEquals(1, cache.count());
+
+        cache.trimToSize(-1);
+        assertEquals("evicted 3=", cache.m_removals.get(2));
+        assertEquals(0, cache.count());
+        assertEquals(0, cache.size());
+        assertNull(cache.get(3));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void put_rejectsNullValue() throws Exception
+    {
+        m_cache.put(1, null);
+    }
+
+    /**
+     * A cache that counts entries, or the length of each value, and records
+     * every removal in order.
+     */
+    private static class RecordingCache extends LongLruCache<String>
+    {
+        final List<String> m_removals = new ArrayList<>();
+        boolean m_sizeOfLength;
+
+        RecordingCache(int maxSize)
+        {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(long key, String value)
+        {
+            return m_sizeOfLength ? value.length() : 1;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long key, String oldValue, String newValue)
+        {
+            if (evicted)
+            {
+                m_removals.add("evicted " + key + "=" + oldValue);
+            }
+            else if (newValue != null)
+            {
+                m_removals.add("replaced " + key + "=" + oldValue + " with " + newValue);
+            }
+            else
+            {
+                m_removals.add("removed " + key + "=" + oldValue);
+            }
+        }
+    }
+}